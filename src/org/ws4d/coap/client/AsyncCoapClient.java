@@ -0,0 +1,351 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+import org.ws4d.coap.connection.BasicCoapChannelManager;
+import org.ws4d.coap.interfaces.CoapChannel;
+import org.ws4d.coap.interfaces.CoapChannelManager;
+import org.ws4d.coap.interfaces.CoapClient;
+import org.ws4d.coap.interfaces.CoapClientChannel;
+import org.ws4d.coap.interfaces.CoapRequest;
+import org.ws4d.coap.interfaces.CoapResponse;
+import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.tools.EndpointMap;
+
+/**
+ * Request/response client on top of the client channels: every request gets
+ * its own future, completed by the response with the same token. The
+ * blocking call() just waits for that future, which is cheap on a virtual
+ * thread.
+ *
+ * Usage:
+ * <pre>
+ * AsyncCoapClient client = new AsyncCoapClient();
+ * CoapRequest request = client.createRequest(address, port, true, CoapRequestCode.GET);
+ * request.setUriPath("/temperature");
+ * client.send(request).thenAccept(...);
+ * </pre>
+ *
+ * A future completes with a retained response (see CoapMessage.retain()).
+ * If the socket handler uses a message pool, the application must call
+ * release() on the response once it is done with it. Otherwise the pooled
+ * message is never recycled. For other messages release() has no effect.
+ */
+public class AsyncCoapClient implements CoapClient {
+	private final static Logger logger = Logger.getLogger(AsyncCoapClient.class);
+
+	/** MAX_TRANSMIT_WAIT of rfc7252: a CON request can not take longer */
+	public static final long DEFAULT_TIMEOUT_MS = 93000;
+
+	/** the timer of the request timeouts, shared by all clients, its thread is started on first use */
+	private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+	private final CoapChannelManager channelManager;
+	private final EndpointMap<CoapClientChannel> channels = new EndpointMap<CoapClientChannel>();
+	/** requests waiting for their response, by channel and token */
+	private final ConcurrentHashMap<PendingKey, ResponseFuture> pending = new ConcurrentHashMap<PendingKey, ResponseFuture>();
+	private volatile long timeout = DEFAULT_TIMEOUT_MS;
+
+	/**
+	 * The future of a request. Cancelling it cancels the request.
+	 */
+	private class ResponseFuture extends CompletableFuture<CoapResponse> {
+		final CoapRequest request;
+		final PendingKey key;
+		volatile ScheduledFuture<?> timeoutTask = null;
+
+		ResponseFuture(CoapRequest request, PendingKey key) {
+			this.request = request;
+			this.key = key;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				abandon(this);
+			}
+			return cancelled;
+		}
+	}
+
+	/**
+	 * The tokens of different servers are chosen independently, a token is
+	 * only unique within its channel.
+	 */
+	private static final class PendingKey {
+		final CoapChannel channel;
+		final ByteBuffer token;
+
+		PendingKey(CoapChannel channel, byte[] token) {
+			this.channel = channel;
+			this.token = ByteBuffer.wrap(token);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(channel) + token.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PendingKey)) {
+				return false;
+			}
+			PendingKey other = (PendingKey) obj;
+			return channel == other.channel && token.equals(other.token);
+		}
+	}
+
+	public AsyncCoapClient() {
+		this(BasicCoapChannelManager.getInstance());
+	}
+
+	public AsyncCoapClient(CoapChannelManager channelManager) {
+		this.channelManager = channelManager;
+	}
+
+	/**
+	 * @param timeoutMs
+	 *            default time until the future of a request fails with a
+	 *            TimeoutException
+	 */
+	public void setTimeout(long timeoutMs) {
+		if (timeoutMs < 1) {
+			throw new IllegalArgumentException("timeout must be positive");
+		}
+		this.timeout = timeoutMs;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return The channel to a server, created on first use and shared by
+	 *         all requests to it.
+	 */
+	public CoapClientChannel getChannel(InetAddress address, int port) {
+		CoapClientChannel channel = channels.get(address, port);
+		if (channel != null) {
+			return channel;
+		}
+		synchronized (channels) {
+			channel = channels.get(address, port);
+			if (channel == null) {
+				channel = channelManager.connect(this, address, port);
+				if (channel == null) {
+					throw new IllegalStateException("could not connect to " + address + ":" + port);
+				}
+				channels.put(address, port, channel);
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * @return A new request to a server, send it with send() or call().
+	 */
+	public CoapRequest createRequest(InetAddress address, int port, boolean reliable, CoapRequestCode requestCode) {
+		return getChannel(address, port).createRequest(reliable, requestCode);
+	}
+
+	/**
+	 * Sends a request created by createRequest() with the default timeout.
+	 */
+	public CompletableFuture<CoapResponse> send(CoapRequest request) {
+		return send(request, timeout);
+	}
+
+	/**
+	 * Sends a request created by createRequest().
+	 * @param request
+	 * @param timeoutMs
+	 * @return A future that is completed with the response, or
+	 *         exceptionally with a TimeoutException or an IOException if the
+	 *         server is not reachable. Cancelling the future cancels the request.
+	 */
+	public CompletableFuture<CoapResponse> send(CoapRequest request, long timeoutMs) {
+		if (!(request.getChannel() instanceof CoapClientChannel)) {
+			throw new IllegalArgumentException("request was not created by a client channel");
+		}
+		byte[] token = request.getToken();
+		if (token == null || token.length == 0) {
+			throw new IllegalArgumentException("request has no token");
+		}
+		final ResponseFuture future = new ResponseFuture(request, new PendingKey(request.getChannel(), token.clone()));
+		if (pending.putIfAbsent(future.key, future) != null) {
+			throw new IllegalStateException("request is already pending");
+		}
+		future.timeoutTask = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (future.completeExceptionally(new TimeoutException("no response within timeout"))) {
+					abandon(future);
+				}
+			}
+		}, timeoutMs, TimeUnit.MILLISECONDS);
+		try {
+			request.getChannel().sendMessage(request);
+		} catch (RuntimeException e) {
+			/* e.g. the token is used by another exchange */
+			pending.remove(future.key, future);
+			cancelTimeout(future);
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * Sends a GET request to a server.
+	 */
+	public CompletableFuture<CoapResponse> get(InetAddress address, int port, String path) {
+		CoapRequest request = createRequest(address, port, true, CoapRequestCode.GET);
+		request.setUriPath(path);
+		return send(request);
+	}
+
+	/**
+	 * Sends a request and blocks until the response is received. Meant for
+	 * virtual threads, a platform thread is blocked as well.
+	 * @return The response.
+	 * @throws SocketTimeoutException
+	 *             if there was no response within the timeout
+	 * @throws IOException
+	 *             if the server is not reachable
+	 * @throws InterruptedIOException
+	 *             if the thread was interrupted, the request is cancelled
+	 */
+	public CoapResponse call(CoapRequest request) throws IOException {
+		CompletableFuture<CoapResponse> future = send(request);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for the response");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TimeoutException) {
+				throw new SocketTimeoutException(cause.getMessage());
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return Number of requests that wait for their response.
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Fails all pending requests and closes the channels.
+	 */
+	public void close() {
+		for (ResponseFuture future : pending.values()) {
+			future.completeExceptionally(new IOException("client closed"));
+			abandon(future);
+		}
+		synchronized (channels) {
+			for (CoapClientChannel channel : channels.values()) {
+				channel.close();
+			}
+			channels.clear();
+		}
+	}
+
+	@Override
+	public void onResponse(CoapClientChannel channel, CoapResponse response) {
+		byte[] token = response.getToken();
+		if (token == null) {
+			return;
+		}
+		ResponseFuture future = pending.remove(new PendingKey(channel, token));
+		if (future == null) {
+			/* late, cancelled or a notification */
+			logger.debug("response without pending request dropped");
+			return;
+		}
+		cancelTimeout(future);
+		/* the response is used after the callback returned */
+		response.retain();
+		future.complete(response);
+	}
+
+	@Override
+	public void onMCResponse(CoapClientChannel channel, CoapResponse response, InetAddress srcAddress, int srcPort) {
+		/* multicast requests have more than one response, they are not supported by futures */
+	}
+
+	@Override
+	public void onConnectionFailed(CoapClientChannel channel, boolean notReachable, boolean resetByServer) {
+		/* the callback does not tell which request failed, the server is not reachable for any of them */
+		for (ResponseFuture future : pending.values()) {
+			if (future.request.getChannel() == channel
+					&& future.completeExceptionally(new IOException("server not reachable"))) {
+				abandon(future);
+			}
+		}
+	}
+
+	/** the future completed without a response: forget and cancel the request */
+	private void abandon(ResponseFuture future) {
+		pending.remove(future.key, future);
+		cancelTimeout(future);
+		((CoapClientChannel) future.request.getChannel()).cancelRequest(future.request);
+	}
+
+	private static void cancelTimeout(ResponseFuture future) {
+		ScheduledFuture<?> timeoutTask = future.timeoutTask;
+		if (timeoutTask != null) {
+			timeoutTask.cancel(false);
+		}
+	}
+
+	private static ScheduledThreadPoolExecutor createTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CoAP client timeout");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		/* most requests are answered, do not keep their cancelled timeouts */
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+}
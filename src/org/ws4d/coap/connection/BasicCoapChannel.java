@@ -16,6 +16,8 @@
 package org.ws4d.coap.connection;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 
 import org.apache.log4j.Logger;
 import org.ws4d.coap.interfaces.CoapChannel;
@@ -23,6 +25,7 @@ import org.ws4d.coap.interfaces.CoapChannelManager;
 import org.ws4d.coap.interfaces.CoapMessage;
 import org.ws4d.coap.interfaces.CoapSocketHandler;
 import org.ws4d.coap.messages.CoapBlockOption.CoapBlockSize;
+import org.ws4d.coap.tools.SerialExecutor;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -35,11 +38,15 @@ public abstract class BasicCoapChannel implements CoapChannel {
 	protected CoapChannelManager channelManager = null;
 	protected InetAddress remoteAddress;
 	protected int remotePort;
+	/** resolved once, used for every datagram sent on this channel */
+	protected InetSocketAddress remoteSocketAddress;
 	protected int localPort;
 	/** null means no block option */
 	CoapBlockSize maxReceiveBlocksize = null;
 	/** null means no block option */
 	CoapBlockSize maxSendBlocksize = null;
+	/** keeps the order of received messages if they are dispatched to an executor */
+	private SerialExecutor dispatchQueue = null;
 
 	public BasicCoapChannel(CoapSocketHandler socketHandler,
 			InetAddress remoteAddress, int remotePort) {
@@ -47,6 +54,7 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		channelManager = socketHandler.getChannelManager();
 		this.remoteAddress = remoteAddress;
 		this.remotePort = remotePort;
+		this.remoteSocketAddress = new InetSocketAddress(remoteAddress, remotePort);
 		
 		// FIXME:can be 0 when socketHandler is not yet ready
 		this.localPort = socketHandler.getLocalPort(); 
@@ -58,6 +66,17 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		socketHandler.sendMessage(msg);
 	}
 
+	/**
+	 * @return The queue that runs the callbacks of this channel in order on
+	 *         the given executor.
+	 */
+	synchronized SerialExecutor getDispatchQueue(Executor executor) {
+		if (dispatchQueue == null || dispatchQueue.getExecutor() != executor) {
+			dispatchQueue = new SerialExecutor(executor);
+		}
+		return dispatchQueue;
+	}
+
 	@Override
 	public CoapBlockSize getMaxReceiveBlocksize() {
 		return maxReceiveBlocksize;
@@ -88,6 +107,11 @@ public abstract class BasicCoapChannel implements CoapChannel {
 		return remotePort;
 	}
 
+	@Override
+	public InetSocketAddress getRemoteSocketAddress() {
+		return remoteSocketAddress;
+	}
+
 	
 	/*
 	 * A channel is identified (and therefore unique) by its remote address,
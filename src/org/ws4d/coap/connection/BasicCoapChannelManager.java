@@ -17,6 +17,7 @@ package org.ws4d.coap.connection;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.HashMap;
 import java.util.Random;
 
@@ -32,6 +33,7 @@ import org.ws4d.coap.interfaces.CoapMessage;
 import org.ws4d.coap.interfaces.CoapServer;
 import org.ws4d.coap.interfaces.CoapServerChannel;
 import org.ws4d.coap.interfaces.CoapSocketHandler;
+import org.ws4d.coap.interfaces.CoapTransport;
 import org.ws4d.coap.messages.BasicCoapRequest;
 
 /**
@@ -45,6 +47,13 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 	private static BasicCoapChannelManager instance;
 	private HashMap<Integer, SocketInformation> socketMap = new HashMap<Integer, SocketInformation>();
 	CoapServer serverListener = null;
+	/** socket handlers shared by all client channels, null: a socket per channel */
+	private BasicCoapSocketHandler[] clientEndpoints = null;
+	private int nextClientEndpoint = 0;
+	/** selector threads of all socket handlers, created on first use */
+	private EventLoopGroup eventLoopGroup = null;
+	/** false (default): every socket handler starts its own threads */
+	private boolean useEventLoops = false;
 
 	private BasicCoapChannelManager() 
 	{
@@ -106,10 +115,17 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 
 	@Override
 	public void createServerListener(CoapServer serverListener, int localPort) {
+		createServerListener(serverListener, localPort, 1);
+	}
+
+	@Override
+	public void createServerListener(CoapServer serverListener, int localPort,
+			int receiveLoops) {
 		if (!socketMap.containsKey(localPort)) {
 			try {
 				SocketInformation socketInfo = new SocketInformation(
-						new BasicCoapSocketHandler(this, localPort),
+						new BasicCoapSocketHandler(this, new UdpCoapTransport(localPort, receiveLoops),
+								getEventLoopGroup()),
 						serverListener);
 				socketMap.put(localPort, socketInfo);
 			} catch (IOException e) {
@@ -121,12 +137,91 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 		}
 	}
 
+	@Override
+	public synchronized CoapSocketHandler getSocketHandler(int localPort) {
+		SocketInformation socketInfo = socketMap.get(localPort);
+		return socketInfo == null ? null : socketInfo.socketHandler;
+	}
+
+	@Override
+	public synchronized void createServerListener(CoapServer serverListener,
+			CoapTransport transport) {
+		if (socketMap.containsKey(transport.getLocalPort())) {
+			throw new IllegalStateException("address already in use");
+		}
+		SocketInformation socketInfo = new SocketInformation(
+				new BasicCoapSocketHandler(this, transport, getEventLoopGroup()), serverListener);
+		socketMap.put(transport.getLocalPort(), socketInfo);
+	}
+
+	@Override
+	public synchronized CoapClientChannel connect(CoapClient client,
+			InetAddress addr, int port, CoapTransport transport) {
+		if (socketMap.containsKey(transport.getLocalPort())) {
+			throw new IllegalStateException("address already in use");
+		}
+		CoapSocketHandler socketHandler = new BasicCoapSocketHandler(this,
+				transport, getEventLoopGroup());
+		socketMap.put(socketHandler.getLocalPort(), new SocketInformation(
+				socketHandler, null));
+		return socketHandler.connect(client, addr, port);
+	}
+
+	@Override
+	public CoapClientChannel connectDedicated(CoapClient client,
+			InetAddress addr, int port) {
+		try {
+			return connect(client, addr, port, new ConnectedUdpCoapTransport(
+					new InetSocketAddress(addr, port)));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void setSharedClientEndpoints(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count must not be negative");
+		}
+		/* existing endpoints keep serving their channels */
+		clientEndpoints = count == 0 ? null : new BasicCoapSocketHandler[count];
+		nextClientEndpoint = 0;
+	}
+
+	/**
+	 * @return The next shared client endpoint (round robin), opened on first
+	 *         use. null if client endpoints are not shared.
+	 */
+	private synchronized BasicCoapSocketHandler getClientEndpoint() throws IOException {
+		if (clientEndpoints == null) {
+			return null;
+		}
+		int index = nextClientEndpoint;
+		nextClientEndpoint = (index + 1) % clientEndpoints.length;
+		BasicCoapSocketHandler socketHandler = clientEndpoints[index];
+		if (socketHandler == null) {
+			/* a client endpoint does not need the multicast groups */
+			socketHandler = new BasicCoapSocketHandler(this, new UdpCoapTransport(0, 1, false),
+					getEventLoopGroup());
+			socketHandler.setMultiplexClientChannels(true);
+			socketMap.put(socketHandler.getLocalPort(), new SocketInformation(socketHandler, null));
+			clientEndpoints[index] = socketHandler;
+		}
+		return socketHandler;
+	}
+
 	@Override
 	public CoapClientChannel connect(CoapClient client, InetAddress addr,
 			int port) {
 		CoapSocketHandler socketHandler = null;
 		try {
-			socketHandler = new BasicCoapSocketHandler(this);
+			BasicCoapSocketHandler sharedHandler = getClientEndpoint();
+			if (sharedHandler != null) {
+				return sharedHandler.connect(client, addr, port);
+			}
+			socketHandler = new BasicCoapSocketHandler(this, new UdpCoapTransport(0, 1),
+					getEventLoopGroup());
 			SocketInformation sockInfo = new SocketInformation(socketHandler,
 					null);
 			socketMap.put(socketHandler.getLocalPort(), sockInfo);
@@ -138,6 +233,47 @@ public class BasicCoapChannelManager implements CoapChannelManager {
 		return null;
 	}
 
+	/**
+	 * Sets the event loops that serve the socket handlers created from now
+	 * on. Existing socket handlers keep their loops or threads.
+	 * @param group
+	 *            null: every socket handler starts its own threads
+	 */
+	public synchronized void setEventLoopGroup(EventLoopGroup group) {
+		this.eventLoopGroup = group;
+		this.useEventLoops = group != null;
+	}
+
+	/**
+	 * Lets the socket handlers created from now on share a group of event
+	 * loops with one loop per core, instead of starting their own threads.
+	 * Disabled by default.
+	 * @param enabled
+	 */
+	public synchronized void setEventLoopsEnabled(boolean enabled) {
+		this.useEventLoops = enabled;
+		if (!enabled) {
+			this.eventLoopGroup = null;
+		}
+	}
+
+	/**
+	 * @return The event loops of the socket handlers, one per core unless
+	 *         set. null if socket handlers start their own threads (default).
+	 */
+	public synchronized EventLoopGroup getEventLoopGroup() {
+		if (eventLoopGroup == null && useEventLoops) {
+			try {
+				eventLoopGroup = EventLoopGroup.createDefault();
+			} catch (IOException e) {
+				/* no selector, fall back to threads */
+				e.printStackTrace();
+				useEventLoops = false;
+			}
+		}
+		return eventLoopGroup;
+	}
+
 	private class SocketInformation {
 		public CoapSocketHandler socketHandler = null;
 		public CoapServer serverListener = null;
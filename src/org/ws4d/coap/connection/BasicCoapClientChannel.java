@@ -19,6 +19,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.ws4d.coap.interfaces.CoapClient;
 import org.ws4d.coap.interfaces.CoapClientChannel;
@@ -33,6 +37,7 @@ import org.ws4d.coap.messages.CoapBlockOption.CoapBlockSize;
 import org.ws4d.coap.messages.CoapEmptyMessage;
 import org.ws4d.coap.messages.CoapPacketType;
 import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapRequestTemplate;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -41,20 +46,119 @@ import org.ws4d.coap.messages.CoapRequestCode;
 
 public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClientChannel {
 	CoapClient client = null;
-	ClientBlockContext blockContext = null;
 	CoapRequest lastRequest = null;
 	Object trigger = null;
+	/** indexes the exchanges of this channel by token, null if created by another socket handler */
+	private final BasicCoapSocketHandler exchangeIndex;
+	/** the NSTART window of the remote endpoint, shared with the other client channels to it */
+	private final RequestWindow window;
+	/** CON requests that wait for a free slot of the window, FIFO, guarded by the window */
+	private final ArrayDeque<CoapMessage> backlog = new ArrayDeque<CoapMessage>();
+	/** the channel left the window, guarded by the window */
+	private boolean closed = false;
+	
+	/**
+	 * A request and its responses (blocks, notifications). Exchanges are
+	 * indexed by token in the socket handler, so any number of requests can
+	 * be outstanding on a channel.
+	 */
+	class Exchange {
+		final byte[] token;
+		final CoapRequest request;
+		/** blockwise transfer of this exchange, null if there is none */
+		volatile ClientBlockContext blockContext = null;
+		
+		Exchange(CoapRequest request) {
+			this.token = request.getToken();
+			this.request = request;
+		}
+		
+		BasicCoapClientChannel getChannel() {
+			return BasicCoapClientChannel.this;
+		}
+		
+		boolean isObserve() {
+			return request.getObserveOption() != null;
+		}
+	}
+	
+	private static class Outstanding {
+		final BasicCoapClientChannel channel;
+		final CoapMessage request;
+		final long sent;
+		
+		Outstanding(BasicCoapClientChannel channel, CoapMessage request, long sent) {
+			this.channel = channel;
+			this.request = request;
+			this.sent = sent;
+		}
+	}
+	
+	/**
+	 * The NSTART window of a remote endpoint. A socket handler shares it
+	 * between all its client channels to the endpoint, so that the endpoint
+	 * sees at most NSTART outstanding CON requests however many channels
+	 * are multiplexed. The lock of the window guards the backlogs of these
+	 * channels as well.
+	 */
+	static final class RequestWindow {
+		/** channels that use the window, guarded by the socket handler */
+		int channels = 0;
+		/** CON requests that were sent and wait for their response (at most NSTART) */
+		private final ArrayList<Outstanding> outstanding = new ArrayList<Outstanding>();
+		/** channels with queued requests, served round robin */
+		private final ArrayDeque<BasicCoapClientChannel> waiting = new ArrayDeque<BasicCoapClientChannel>();
+		
+		/** called with the lock of the window held */
+		private boolean hasFreeSlot(int nstart) {
+			if (outstanding.size() < nstart) {
+				return true;
+			}
+			/* a separate response may never arrive, give up on it after the exchange lifetime */
+			long expired = System.currentTimeMillis() - CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS;
+			for (int i = outstanding.size() - 1; i >= 0; i--) {
+				if (outstanding.get(i).sent < expired) {
+					outstanding.remove(i);
+				}
+			}
+			return outstanding.size() < nstart;
+		}
+	}
 	
 	public BasicCoapClientChannel(CoapSocketHandler socketHandler,
 			CoapClient client, InetAddress remoteAddress,
 			int remotePort) {
 		super(socketHandler, remoteAddress, remotePort);
 		this.client = client;
+		this.exchangeIndex = socketHandler instanceof BasicCoapSocketHandler ? (BasicCoapSocketHandler) socketHandler : null;
+		this.window = exchangeIndex != null ? exchangeIndex.acquireRequestWindow(remoteAddress, remotePort)
+				: new RequestWindow();
 	}
 	
 	@Override
     public void close() {
         socketHandler.removeClientChannel(this);
+        if (exchangeIndex != null) {
+        	exchangeIndex.removeExchanges(this);
+        }
+        synchronized (window) {
+        	if (closed) {
+        		return;
+        	}
+        	closed = true;
+        	for (int i = window.outstanding.size() - 1; i >= 0; i--) {
+        		if (window.outstanding.get(i).channel == this) {
+        			window.outstanding.remove(i);
+        		}
+        	}
+        	backlog.clear();
+        	window.waiting.remove(this);
+        }
+        if (exchangeIndex != null) {
+        	exchangeIndex.releaseRequestWindow(remoteAddress, remotePort, window);
+        }
+        /* the slots of this channel are free for the other channels */
+        sendQueuedRequests();
     }
 	
 	public byte[] getLastToken() {
@@ -67,6 +171,12 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 	@Override
 	public void handleMessage(CoapMessage message) 
 	{ 
+		if (message.getPacketType() == CoapPacketType.RST
+				|| (message.isResponse() && !message.isEmpty())) {
+			/* the exchange is complete, the next queued request can be sent */
+			completeRequest(message);
+		}
+		
 		if (message.isRequest()){
 			/* this is a client channel, no requests allowed */
 			message.getChannel().sendMessage(new CoapEmptyMessage(CoapPacketType.RST, message.getMessageID()));
@@ -79,26 +189,39 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 			return;
 		}  
 		
+		if (message.isEmpty()){
+			/* RST: the request was rejected, its exchange was removed above */
+			return;
+		}
+		
 		if (message.getPacketType() == CoapPacketType.CON) {
 			/* this is a separate response */
 			/* send ACK */
 			this.sendMessage(new CoapEmptyMessage(CoapPacketType.ACK, message.getMessageID()));
 		} 
 		
+		Exchange exchange = exchangeIndex == null ? null : exchangeIndex.getExchange(message.getToken());
+		if (exchange == null) {
+			/* unknown token: no blockwise transfer or observation to continue */
+			client.onResponse(this, (BasicCoapResponse) message);
+			return;
+		}
+		
 		/* check for blockwise transfer */
 		CoapBlockOption block2 = message.getBlock2();
-		CoapBlockOption block1 = message.getBlock1();
+		ClientBlockContext blockContext = exchange.blockContext;
 		if (blockContext == null && block2 != null){
 			/* initiate blockwise transfer */
 			blockContext = new ClientBlockContext(block2, maxReceiveBlocksize);
-			blockContext.setFirstRequest(lastRequest);
+			blockContext.setFirstRequest(exchange.request);
+			/* kept until the transfer is finished */
+			message.retain();
 			blockContext.setFirstResponse((CoapResponse) message);
+			exchange.blockContext = blockContext;
 		}
 		
 		if (blockContext!= null){
 			/*blocking option*/
-			if( blockContext.getFirstRequest() == null )
-				System.err.println("first Request is null");
 			if( blockContext.getFirstRequest().getRequestCode() == CoapRequestCode.GET) {
 				if (!blockContext.addBlock(message, block2)){
 					/*this was not a correct block*/
@@ -111,32 +234,39 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 				 *  		if the same block is received more than x times -> rst the connection 
 				 *  implement maxPayloadSize to avoid an infinity payload */
 				CoapBlockOption newBlock = blockContext.getNextBlock();
-				if (lastRequest == null){
-					/*TODO: this should never happen*/
-					System.err.println("ERROR: client channel: lastRequest == null");
+				/* create a new request for the next block, it belongs to the same exchange (token) */
+				CoapRequest firstRequest = blockContext.getFirstRequest();
+				BasicCoapRequest request =  new BasicCoapRequest(firstRequest.getPacketType(), firstRequest.getRequestCode(), channelManager.getNewMessageID());
+				request.copyHeaderOptions((BasicCoapRequest) firstRequest);
+				request.setToken( firstRequest.getToken() );
+				if( request.getRequestCode() == CoapRequestCode.GET ) {
+					request.setBlock2(newBlock);
 				} else {
-					/* create a new request for the next block */
-					BasicCoapRequest request =  new BasicCoapRequest(lastRequest.getPacketType(), lastRequest.getRequestCode(), channelManager.getNewMessageID());
-					request.copyHeaderOptions((BasicCoapRequest) blockContext.getFirstRequest());
-					request.setToken( blockContext.getFirstRequest().getToken() );
-					if( request.getRequestCode() == CoapRequestCode.GET ) {
-						request.setBlock2(newBlock);
-					} else {
-						request.setBlock1(newBlock);
-						request.setPayload( blockContext.getNextPayload(newBlock) );
-					}
-					sendMessage(request);
+					request.setBlock1(newBlock);
+					request.setPayload( blockContext.getNextPayload(newBlock) );
 				}
+				sendMessage(request);
 				/* TODO: implement handler, inform the client that a block (but not the complete message) was received*/
 				return;
 			} 
 			/* blockwise transfer finished */
 			
 			message.setPayload(blockContext.getPayload());
-			blockContext = null;
+			if (blockContext.getFirstResponse() != null) {
+				/* only Block2 transfers keep their first response */
+				blockContext.getFirstResponse().release();
+			}
+			exchange.blockContext = null;
 			/* TODO: give the payload separately and leave the original message as they is*/
 		} 		
 
+		if (exchange.isObserve() && message.getObserveOption() != null) {
+			/* a notification, the observation goes on */
+			exchangeIndex.refreshExchange(exchange);
+		} else {
+			exchangeIndex.removeExchange(exchange);
+		}
+		
 		/* normal or separate response */
 		client.onResponse(this, (BasicCoapResponse) message);
 	}
@@ -182,13 +312,86 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
     	BasicCoapRequest msg = new BasicCoapRequest(
                 reliable ? CoapPacketType.CON : CoapPacketType.NON, requestCode,
                 channelManager.getNewMessageID());
+        msg.setToken(exchangeIndex != null ? exchangeIndex.newToken() : randomToken());
         msg.setChannel(this);
         return msg;
     }
     
+    @Override
+    public CoapRequestTemplate createRequestTemplate(boolean reliable, CoapRequestCode requestCode, String uriPath) {
+    	BasicCoapRequest prototype = new BasicCoapRequest(
+    			reliable ? CoapPacketType.CON : CoapPacketType.NON, requestCode, 0);
+    	prototype.setUriPath(uriPath);
+    	return new CoapRequestTemplate(prototype);
+    }
+    
+    @Override
+    public BasicCoapRequest createRequest(CoapRequestTemplate template) {
+    	BasicCoapRequest msg = template.createRequest(channelManager.getNewMessageID(),
+    			exchangeIndex != null ? exchangeIndex.newToken() : randomToken());
+    	msg.setChannel(this);
+    	return msg;
+    }
+    
     @Override
     public void sendMessage(CoapMessage msg) 
     {
+        if (msg.isRequest()) {
+        	registerExchange((CoapRequest) msg);
+        }
+        if (msg.isRequest() && msg.getPacketType() == CoapPacketType.CON) {
+        	int nstart = getNstart();
+        	boolean free;
+        	boolean queued = false;
+        	synchronized (window) {
+        		free = window.hasFreeSlot(nstart);
+        		if (!closed) {
+        			if (free && window.waiting.isEmpty()) {
+        				window.outstanding.add(new Outstanding(this, msg, System.currentTimeMillis()));
+        			} else {
+        				/* NSTART reached or earlier requests to the endpoint wait:
+        				 * the request is sent once an outstanding one completes */
+        				if (backlog.isEmpty()) {
+        					window.waiting.add(this);
+        				}
+        				backlog.add(msg);
+        				queued = true;
+        			}
+        		}
+        	}
+        	if (queued) {
+        		if (free) {
+        			/* a slot expired, the requests queued before get it first */
+        			sendQueuedRequests();
+        		}
+        		return;
+        	}
+        }
+        transmit(msg);
+    }
+    
+    /**
+     * Indexes the exchange of a request by its token before the request is
+     * queued or sent, the response can arrive at any time.
+     * @throws IllegalStateException if another exchange uses the token, its
+     *         response could not be told apart
+     */
+    private void registerExchange(CoapRequest request) {
+    	if (exchangeIndex == null || request.getToken() == null || request.getToken().length == 0) {
+    		return;
+    	}
+    	Exchange exchange = exchangeIndex.getExchange(request.getToken());
+    	if (exchange != null && exchange.getChannel() == this) {
+    		/* follow up requests of blockwise transfers keep the exchange of their token */
+    		return;
+    	}
+    	if (exchangeIndex.registerExchange(new Exchange(request)) != null) {
+    		/* used by a channel of the same socket handler, or a token with the same key */
+    		throw new IllegalStateException("token is already used by another exchange");
+    	}
+    }
+    
+    private void transmit(CoapMessage msg) {
         super.sendMessage(msg);
         
         // Check whether msg is a CoapRequest --> otherwise do nothing
@@ -196,6 +399,155 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
         	lastRequest = (CoapRequest) msg;
     }
     
+    /**
+     * @return Number of requests that wait for a free slot of the NSTART
+     *         window. Callers can stop sending while this grows.
+     */
+    @Override
+    public int getQueuedRequestCount() {
+    	synchronized (window) {
+    		return backlog.size();
+    	}
+    }
+    
+    /**
+     * @return Number of sent CON requests of this channel that wait for
+     *         their response.
+     */
+    public int getOutstandingRequestCount() {
+    	int count = 0;
+    	synchronized (window) {
+    		for (int i = 0; i < window.outstanding.size(); i++) {
+    			if (window.outstanding.get(i).channel == this) {
+    				count++;
+    			}
+    		}
+    	}
+    	return count;
+    }
+    
+    private int getNstart() {
+    	if (exchangeIndex == null) {
+    		return TransmissionParameters.DEFAULT_NSTART;
+    	}
+    	return exchangeIndex.getTransmissionParameters(remoteAddress, remotePort).getNstart();
+    }
+    
+    /** the response (or RST) was received, release the slot of its request */
+    private void completeRequest(CoapMessage message) {
+    	boolean rst = message.getPacketType() == CoapPacketType.RST;
+    	CoapMessage completed = null;
+    	synchronized (window) {
+    		for (int i = 0; i < window.outstanding.size(); i++) {
+    			Outstanding slot = window.outstanding.get(i);
+    			if (slot.channel != this) {
+    				continue;
+    			}
+    			CoapMessage request = slot.request;
+    			if (rst ? request.getMessageID() == message.getMessageID()
+    					: sameToken(request.getToken(), message.getToken())) {
+    				completed = window.outstanding.remove(i).request;
+    				break;
+    			}
+    		}
+    	}
+    	if (rst && completed != null) {
+    		/* the server rejected the request, no response will follow */
+    		removeExchange(completed);
+    	}
+    	sendQueuedRequests();
+    }
+    
+    private void removeExchange(CoapMessage request) {
+    	if (exchangeIndex == null) {
+    		return;
+    	}
+    	Exchange exchange = exchangeIndex.getExchange(request.getToken());
+    	if (exchange != null && exchange.getChannel() == this) {
+    		exchangeIndex.removeExchange(exchange);
+    	}
+    }
+    
+    private static byte[] randomToken() {
+    	byte[] token = new byte[BasicCoapSocketHandler.TOKEN_LENGTH];
+    	ThreadLocalRandom.current().nextBytes(token);
+    	return token;
+    }
+    
+    /** a request without token has null, a received message an empty array */
+    private static boolean sameToken(byte[] a, byte[] b) {
+    	if (a == null || b == null) {
+    		return (a == null || a.length == 0) && (b == null || b.length == 0);
+    	}
+    	return Arrays.equals(a, b);
+    }
+    
+    /**
+     * Called by the socket handler if a CON request was not confirmed after
+     * MAX_RETRANSMIT retransmissions.
+     */
+    void requestFailed(CoapMessage request) {
+    	removeExchange(request);
+    	releaseSlot(request);
+    	sendQueuedRequests();
+    }
+    
+    @Override
+    public void cancelRequest(CoapRequest request) {
+    	boolean queued;
+    	synchronized (window) {
+    		queued = backlog.remove(request);
+    		if (queued && backlog.isEmpty()) {
+    			window.waiting.remove(this);
+    		}
+    	}
+    	/* queued requests are indexed as well */
+    	removeExchange(request);
+    	if (queued) {
+    		return;
+    	}
+    	if (exchangeIndex != null && request.getPacketType() == CoapPacketType.CON) {
+    		exchangeIndex.cancelRetransmission(request);
+    	}
+    	if (releaseSlot(request)) {
+    		sendQueuedRequests();
+    	}
+    }
+    
+    private boolean releaseSlot(CoapMessage request) {
+    	synchronized (window) {
+    		for (int i = 0; i < window.outstanding.size(); i++) {
+    			if (window.outstanding.get(i).request == request) {
+    				window.outstanding.remove(i);
+    				return true;
+    			}
+    		}
+    	}
+    	return false;
+    }
+    
+    /** sends the queued requests of all channels to the endpoint while the window has free slots */
+    private void sendQueuedRequests() {
+    	int nstart = getNstart();
+    	while (true) {
+    		BasicCoapClientChannel channel;
+    		CoapMessage next;
+    		synchronized (window) {
+    			if (window.waiting.isEmpty() || !window.hasFreeSlot(nstart)) {
+    				return;
+    			}
+    			/* round robin, a channel with a long backlog does not starve the others */
+    			channel = window.waiting.poll();
+    			next = channel.backlog.poll();
+    			if (!channel.backlog.isEmpty()) {
+    				window.waiting.add(channel);
+    			}
+    			window.outstanding.add(new Outstanding(channel, next, System.currentTimeMillis()));
+    		}
+    		channel.transmit(next);
+    	}
+    }
+    
     /** This function should be called to initiate any blockwise POST or PUT request. Adds the context for
      * the blockwise transaction to the client channel.
      * 
@@ -216,7 +568,7 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
     		if( block1 != null && block1.getBlockSize().getSize() < maxSendBlocksize.getSize() ) 
     			bSize = block1.getBlockSize();
   
-    		this.blockContext = new ClientBlockContext( bSize, request.getPayload() );
+    		ClientBlockContext blockContext = new ClientBlockContext( bSize, request.getPayload() );
 	    	
 	    	BasicCoapRequest firstRequest = createRequest(request.isReliable(), request.getRequestCode());
 	    	firstRequest.copyHeaderOptions( (BasicCoapRequest)request );
@@ -228,8 +580,14 @@ public class BasicCoapClientChannel extends BasicCoapChannel implements CoapClie
 	    		block1 = new CoapBlockOption(0, true, bSize);
 	    	
 	    	firstRequest.setBlock1(block1);
-	    	firstRequest.setPayload( this.blockContext.getNextPayload(block1) );
-	    	this.blockContext.setFirstRequest(firstRequest);
+	    	firstRequest.setPayload( blockContext.getNextPayload(block1) );
+	    	blockContext.setFirstRequest(firstRequest);
+	    	if (exchangeIndex != null) {
+	    		/* the exchange carries the context until the first request is sent */
+	    		Exchange exchange = new Exchange(firstRequest);
+	    		exchange.blockContext = blockContext;
+	    		exchangeIndex.refreshExchange(exchange);
+	    	}
 	    	return firstRequest;
 	    } else {
 	    	System.err.println("ERROR: Tried to manually add BlockContext to GET request!");
@@ -32,6 +32,7 @@ import org.ws4d.coap.messages.BasicCoapResponse;
 import org.ws4d.coap.messages.CoapBlockOption;
 import org.ws4d.coap.messages.CoapEmptyMessage;
 import org.ws4d.coap.messages.CoapMediaType;
+import org.ws4d.coap.messages.CoapMessagePool;
 import org.ws4d.coap.messages.CoapPacketType;
 import org.ws4d.coap.messages.CoapRequestCode;
 import org.ws4d.coap.messages.CoapResponseCode;
@@ -58,6 +59,10 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
     @Override
     public void close() {
         socketHandler.removeServerChannel(this);
+        if (lastRequest != null && messagePool() != null) {
+        	lastRequest.release();
+        	lastRequest = null;
+        }
     }
 	
 	
@@ -80,11 +85,19 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		}
 		
 		BasicCoapRequest request = (BasicCoapRequest) message;
+		if (messagePool() != null) {
+			/* the channel keeps the request beyond the callback */
+			request.retain();
+			if (lastRequest != null) {
+				lastRequest.release();
+			}
+		}
 		lastRequest = request;
 		CoapBlockOption block1 = request.getBlock1();
 		
 		if( blockContext == null && block1 != null ){
 			blockContext = new ServerBlockContext(block1, this.maxReceiveBlocksize);
+			request.retain();
 			blockContext.setFirstRequest(request);
 		}
 		
@@ -109,6 +122,7 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 //					System.out.println("Sending Block Number: " + newBlock.getNumber()+"; Payload: " + new String(response.getPayload()) );
 					sendMessage(response);
 					if( blockContext.isFinished() ) {
+						blockContext.getFirstRequest().release();
 						blockContext = null;
 					}
 					return;
@@ -120,6 +134,7 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			CoapChannel channel = request.getChannel();
 			if( blockContext != null ){
 				request.setPayload( blockContext.getPayload() );
+				blockContext.getFirstRequest().release();
 				blockContext = null;
 			}
 			/* TODO make this cast safe */
@@ -146,9 +161,9 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
     public BasicCoapResponse createResponse(CoapMessage request, CoapResponseCode responseCode, CoapMediaType contentType){
     	BasicCoapResponse response;
     	if (request.getPacketType() == CoapPacketType.CON) {
-    		response = new BasicCoapResponse(CoapPacketType.ACK, responseCode, request.getMessageID(), request.getToken());
+    		response = newResponse(CoapPacketType.ACK, responseCode, request.getMessageID(), request.getToken());
     	} else if (request.getPacketType() == CoapPacketType.NON) {
-    		response = new BasicCoapResponse(CoapPacketType.NON, responseCode, request.getMessageID(), request.getToken());
+    		response = newResponse(CoapPacketType.NON, responseCode, request.getMessageID(), request.getToken());
     	} else {
     		throw new IllegalStateException("Create Response failed, Request is neither a CON nor a NON packet");
     	}
@@ -167,12 +182,15 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 		BasicCoapResponse response = null;
 		if (request.getPacketType() == CoapPacketType.CON) {
 			/* The separate Response is CON (normally a Response is ACK or NON) */
-    		response = new BasicCoapResponse(CoapPacketType.CON, responseCode, channelManager.getNewMessageID(), request.getToken());
+    		response = newResponse(CoapPacketType.CON, responseCode, channelManager.getNewMessageID(), request.getToken());
     		/*send ack immediately */
-    		sendMessage(new CoapEmptyMessage(CoapPacketType.ACK, request.getMessageID()));
+    		CoapMessagePool pool = messagePool();
+    		CoapEmptyMessage ack = pool != null ? pool.createEmptyMessage(CoapPacketType.ACK, request.getMessageID())
+    				: new CoapEmptyMessage(CoapPacketType.ACK, request.getMessageID());
+    		sendMessage(ack);
 		} else if (request.getPacketType() == CoapPacketType.NON){
 			/* Just a normal response*/
-			response = new BasicCoapResponse(CoapPacketType.NON, responseCode, request.getMessageID(), request.getToken());
+			response = newResponse(CoapPacketType.NON, responseCode, request.getMessageID(), request.getToken());
 		} else {
     		throw new IllegalStateException("Create Response failed, Request is neither a CON nor a NON packet");
 		}
@@ -182,6 +200,22 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 	}
 
 
+	/* the message pool of the socket handler, null if messages are not pooled */
+	private CoapMessagePool messagePool() {
+		if (socketHandler instanceof BasicCoapSocketHandler) {
+			return ((BasicCoapSocketHandler) socketHandler).getMessagePool();
+		}
+		return null;
+	}
+	
+	private BasicCoapResponse newResponse(CoapPacketType packetType, CoapResponseCode responseCode, int messageId, byte[] token) {
+		CoapMessagePool pool = messagePool();
+		if (pool != null) {
+			return pool.createResponse(packetType, responseCode, messageId, token);
+		}
+		return new BasicCoapResponse(packetType, responseCode, messageId, token);
+	}
+
 	@Override
 	public void sendSeparateResponse(CoapResponse response) {
 		this.sendMessage(response);
@@ -207,7 +241,7 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			packetType = CoapPacketType.NON;
 		}
 		
-		response = new BasicCoapResponse(packetType, responseCode, channelManager.getNewMessageID(), request.getToken());
+		response = newResponse(packetType, responseCode, channelManager.getNewMessageID(), request.getToken());
 		response.setChannel(this);
 		response.setObserveOption(sequenceNumber);
 		return response;
@@ -237,6 +271,8 @@ public class BasicCoapServerChannel extends BasicCoapChannel implements CoapServ
 			response.setPayload(payload);
 		} else {
 			this.blockContext = new ServerBlockContext( bSize, payload);
+			/* kept until the transfer is finished, released by handleMessage() */
+			request.retain();
 			this.blockContext.setFirstRequest(request);
 			CoapBlockOption block2 = new CoapBlockOption(0, true, bSize );
 			response.copyHeaderOptions( (BasicCoapRequest)request );
@@ -18,23 +18,21 @@ package org.ws4d.coap.connection;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
-import java.net.NetworkInterface;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
-import java.nio.channels.SelectionKey;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.Selector;
 import java.nio.charset.Charset;
-import java.util.Enumeration;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
@@ -45,13 +43,27 @@ import org.ws4d.coap.interfaces.CoapChannelManager;
 import org.ws4d.coap.interfaces.CoapClient;
 import org.ws4d.coap.interfaces.CoapClientChannel;
 import org.ws4d.coap.interfaces.CoapMessage;
+import org.ws4d.coap.interfaces.CoapResponse;
 import org.ws4d.coap.interfaces.CoapServerChannel;
 import org.ws4d.coap.interfaces.CoapSocketHandler;
+import org.ws4d.coap.interfaces.CoapTransport;
+import org.ws4d.coap.interfaces.PassThroughCoapTransport;
+import org.ws4d.coap.interfaces.SelectableCoapTransport;
 import org.ws4d.coap.messages.AbstractCoapMessage;
 import org.ws4d.coap.messages.BasicCoapRequest;
 import org.ws4d.coap.messages.CoapEmptyMessage;
+import org.ws4d.coap.messages.CoapMessagePool;
 import org.ws4d.coap.messages.CoapPacketType;
-import org.ws4d.coap.tools.TimeoutHashMap;
+import org.ws4d.coap.messages.CoapResponseCode;
+import org.ws4d.coap.tools.AdmissionController;
+import org.ws4d.coap.tools.ByteBufferPool;
+import org.ws4d.coap.tools.DedupeTable;
+import org.ws4d.coap.tools.DispatchExecutors;
+import org.ws4d.coap.tools.EndpointMap;
+import org.ws4d.coap.tools.RttEstimator;
+import org.ws4d.coap.tools.ExpiringMap;
+import org.ws4d.coap.tools.MpscArrayQueue;
+import org.ws4d.coap.tools.TimingWheel;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -65,37 +77,125 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 	static final int POLLING_INTERVALL = 10000;
 	
     protected WorkerThread workerThread = null;
-    protected ReceiveThread receiveThread = null;
-    protected ReceiveThread receiveMCThread = null;
-    protected HashMap<ChannelKey, CoapClientChannel> clientChannels = new HashMap<ChannelKey, CoapClientChannel>();
-    protected HashMap<ChannelKey, CoapServerChannel> serverChannels = new HashMap<ChannelKey, CoapServerChannel>();
+    /** one receive thread per receive loop of the transport */
+    protected ReceiveThread[] receiveThreads = null;
+    /* channel maps are accessed by all reactors, lookups are lock-free */
+    protected EndpointMap<CoapClientChannel> clientChannels = new EndpointMap<CoapClientChannel>();
+    protected EndpointMap<CoapServerChannel> serverChannels = new EndpointMap<CoapServerChannel>();
     
     private CoapChannelManager channelManager = null;
-    private DatagramChannel dgramChannel = null;
-    private MulticastSocket dgramSocket = null;
+    /** sends and receives the datagrams */
+    private CoapTransport transport = null;
     
     private Semaphore mapLock = null;
     
-    /** contains all received message keys of a remote (message id generated by the remote) to detect duplications */
-    private TimeoutHashMap<MessageKey, Boolean> duplicateRemoteMap = new TimeoutHashMap<MessageKey, Boolean>(CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
-    /** contains all received message keys of the host (message id generated by the host) to detect duplications */
-    private TimeoutHashMap<Integer, Boolean> duplicateHostMap = new TimeoutHashMap<Integer, Boolean>(CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
-    /** contains all messages that (possibly) needs to be retransmitted (ACK, RST)*/
-    private TimeoutHashMap<MessageKey, CoapMessage> retransMsgMap = new TimeoutHashMap<MessageKey, CoapMessage>(CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
-    /** contains all messages that are not confirmed yet (CON), 
-     * MessageID is always generated by Host and therefore unique */
-    private TimeoutHashMap<Integer, CoapMessage> timeoutConMsgMap = new TimeoutHashMap<Integer, CoapMessage>(CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
-    /** this queue handles the timeout objects in the right order*/
-	private PriorityQueue<TimeoutObject<Integer>> timeoutQueue = new PriorityQueue<TimeoutObject<Integer>>(); 
+    /** duplicate detection and retransmission state, striped by remote endpoint (one slice per reactor) */
+    private ExchangeState[] exchangeStates = null;
+    /** drives retransmissions and the expiry of all exchange state, advanced by the worker thread */
+    private TimingWheel timingWheel = new TimingWheel(TIMER_TICK_MS, TIMER_WHEEL_SIZE);
     
 	public static final int UDP_BUFFER_SIZE = 66000; // max UDP size = 65535 
 	public static final int RECEIVE_BUFFER_SIZE = 330000;
+	/** resolution of the timing wheel */
+	public static final int TIMER_TICK_MS = 20;
+	/** number of slots of the timing wheel */
+	public static final int TIMER_WHEEL_SIZE = 512;
+	/** interval of the removal of expired ACK/RST messages */
+	public static final int SWEEP_INTERVAL_MS = 1000;
+	/** default number of remembered message IDs per direction, shared by all slices */
+	public static final int DEDUPE_CAPACITY = 16384;
+	/** maximum number of idle direct buffers kept by the socket handler */
+	public static final int BUFFER_POOL_SIZE = 16;
+	/** busy polling: about a millisecond of spinning (each poll is a system call), then parked polls */
+	public static final int DEFAULT_BUSY_POLL_SPINS = 1000;
+	public static final long DEFAULT_BUSY_POLL_PARK_NS = 20000;
+	/** datagrams received per readable event before the event loop serves other channels */
+	public static final int RECEIVE_BATCH_SIZE = 64;
+	/** capacity of the lock-free send queue of the worker thread */
+	public static final int SEND_QUEUE_CAPACITY = 1024;
+	/** length of the random tokens of requests, rfc7252 recommends at least 32 random bits */
+	public static final int TOKEN_LENGTH = 4;
+	/** an observation without notification is forgotten after this time */
+	public static final long OBSERVE_LIFETIME_MS = 24 * 60 * 60 * 1000L;
 
     byte[] sendBuffer = new byte[UDP_BUFFER_SIZE];
     
     private int localPort;
+    
+    /** direct buffers for sending and zero copy receiving */
+    private ByteBufferPool bufferPool = new ByteBufferPool(UDP_BUFFER_SIZE, BUFFER_POOL_SIZE);
+    
+    /** decode received datagrams without copying the payload */
+    private volatile boolean zeroCopyReceive = false;
+    
+    /** runs the channel callbacks, null (default): on the receive thread */
+    private volatile Executor dispatchExecutor = null;
+    /** keep the order of the messages of a channel */
+    private volatile boolean dispatchOrdered = true;
+    /** several client channels per remote endpoint, responses are routed by token */
+    private volatile boolean multiplexClientChannels = false;
+    /** unsuccessful polls of a busy polling receive loop before it parks */
+    private volatile int busyPollSpins = DEFAULT_BUSY_POLL_SPINS;
+    private volatile long busyPollParkNanos = DEFAULT_BUSY_POLL_PARK_NS;
+    /** the event loop that sends and handles timeouts, null: the worker thread does */
+    private EventLoopGroup.EventLoop eventLoop = null;
+    private LoopMember loopMember = null;
+    /** recycles received messages and the responses of the server channels, null: no pooling */
+    private volatile CoapMessagePool messagePool = null;
+    /** sheds incoming requests under overload, null: no admission control */
+    private volatile AdmissionController admissionController = null;
+    /** transmission parameters of remote endpoints without own parameters */
+    private volatile TransmissionParameters transmissionParameters = TransmissionParameters.DEFAULT;
+    /** RTT estimation of each remote endpoint, kept next to the channels */
+    private EndpointMap<PeerState> peers = new EndpointMap<PeerState>();
+    /** the NSTART windows of the remote endpoints of the client channels, guarded by itself */
+    private final EndpointMap<BasicCoapClientChannel.RequestWindow> requestWindows = new EndpointMap<BasicCoapClientChannel.RequestWindow>();
+    /** exchanges of the client channels by token, routes responses and notifications */
+    private ExpiringMap<Long, BasicCoapClientChannel.Exchange> clientExchanges =
+    		new ExpiringMap<Long, BasicCoapClientChannel.Exchange>(CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
 
     public BasicCoapSocketHandler(CoapChannelManager channelManager, int port) throws IOException {
+        this(channelManager, port, 1);
+    }
+    
+    /**
+     * Creates a socket handler with more than one unicast receive loop. Each
+     * loop owns its own DatagramChannel, all channels are bound to the same
+     * port using SO_REUSEPORT, so that the kernel distributes incoming
+     * datagrams (by source address) among the loops.
+     * 
+     * @param channelManager
+     * @param port local port, 0 chooses a free port
+     * @param reactorCount number of unicast receive loops, e.g. the number of cores.
+     *        Falls back to a single loop if SO_REUSEPORT is not supported.
+     * @throws IOException
+     */
+    public BasicCoapSocketHandler(CoapChannelManager channelManager, int port, int reactorCount) throws IOException {
+    	this(channelManager, new UdpCoapTransport(port, reactorCount));
+    }
+    
+    /**
+     * Creates a socket handler on top of the given transport, e.g. a
+     * {@link LoopbackCoapTransport} to run the stack without the network.
+     * One receive thread is started per receive loop of the transport.
+     * @param channelManager
+     * @param transport
+     */
+    public BasicCoapSocketHandler(CoapChannelManager channelManager, CoapTransport transport) {
+        this(channelManager, transport, null);
+    }
+    
+    /**
+     * Creates a socket handler that is served by the given event loops
+     * instead of own threads. Receive loops of the transport that can not be
+     * selected (the multicast socket) still get a thread each.
+     * @param channelManager
+     * @param transport
+     * @param eventLoopGroup
+     *            null: start a worker and a receive thread per loop
+     */
+    public BasicCoapSocketHandler(CoapChannelManager channelManager, CoapTransport transport,
+    		EventLoopGroup eventLoopGroup) {
         logger.addAppender(new ConsoleAppender(new SimpleLayout()));
         // ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF:
         logger.setLevel(Level.ALL);
@@ -103,207 +203,616 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
         this.mapLock = new Semaphore(1);
         
     	this.channelManager = channelManager;
-    	  
-        boolean found = false;
-        Enumeration<NetworkInterface> Interfaces = NetworkInterface.getNetworkInterfaces();
-        NetworkInterface NetworkAdapter = null;
-        while( !found ){
-        	NetworkAdapter = Interfaces.nextElement();
-        	if( NetworkAdapter.isUp() && !NetworkAdapter.isLoopback() ) {
-        		found = true;
-        	}
+    	this.transport = transport;
+    	this.localPort = transport.getLocalPort();
+    	
+    	int loops = transport.getReceiveLoopCount();
+    	exchangeStates = new ExchangeState[loops];
+    	for (int i = 0; i < loops; i++) {
+    		exchangeStates[i] = new ExchangeState(DEDUPE_CAPACITY / loops);
     	}
-        
-        dgramChannel = DatagramChannel.open();
-        dgramChannel.socket().setReuseAddress(true);
-        dgramChannel.socket().bind( new InetSocketAddress(port) );
-        
-    	this.localPort = dgramChannel.socket().getLocalPort();
-    	dgramChannel.configureBlocking(false);
-        
-        dgramSocket = new MulticastSocket(port);
-        dgramSocket.setReuseAddress( true );
-        dgramSocket.setNetworkInterface( NetworkAdapter );
-        dgramSocket.setSoTimeout( 0 );
-        dgramSocket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
-         
-        dgramSocket.joinGroup( InetAddress.getByName("ff02::fd") );
-    	dgramSocket.joinGroup( InetAddress.getByName("ff05::fd") );
-        dgramSocket.joinGroup(InetAddress.getByName("224.0.1.187"));
-        
-        
-        System.out.println("Create Group");
-        //Group 1
-        dgramSocket.joinGroup(InetAddress.getByName("224.0.1.188"));
-
-        //Group 2
-        dgramSocket.joinGroup(InetAddress.getByName("224.0.1.189"));
-        
-        
-        
-        //       
-//        if( NetworkAdapter != null){
-//        	dgramChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, NetworkAdapter);
-//        } else {
-//        	System.err.println("ERROR: No suitable Network Interface");
-//        	System.exit(-1);
-//        }
-//        	
-//        //dgramChannel.socket().connect(InetAddress.getByName("0.0.0.0"), port);
-//       	dgramChannel.socket().bind(new InetSocketAddress(port)); //port can be 0, then a free port is chosen 
-//       	
-//        this.localPort = dgramChannel.socket().getLocalPort();
-//        dgramChannel.configureBlocking(false);
-//        
-//        try {
-//        	dgramChannel.join( InetAddress.getByName("224.0.1.187"), NetworkAdapter );
-//        } catch(Exception e) {
-//        	System.err.println("Interface not configured for IPv4! Cannot join Multicast Group!");
-//        }
-//        
-//        try {
-//        	dgramChannel.join( InetAddress.getByName("ff02::fd"), NetworkAdapter );
-//        	dgramChannel.join( InetAddress.getByName("ff05::fd"), NetworkAdapter );
-//        } catch(Exception e) {
-//        	System.err.println("Interface not configured for IPv6! Cannot join Multicast Group!");
-//        }
        
+        timingWheel.schedule(new SweepTask(), SWEEP_INTERVAL_MS);
         workerThread = new WorkerThread();
-        workerThread.start();
-        
-        receiveThread =  new ReceiveThread( false );
-        receiveThread.start();
+        receiveThreads = new ReceiveThread[loops];
+        for (int i = 0; i < loops; i++) {
+        	receiveThreads[i] = new ReceiveThread(i);
+        }
         
-        receiveMCThread = new ReceiveThread( true );
-        receiveMCThread.start();
-
+        if (eventLoopGroup != null && transport instanceof SelectableCoapTransport) {
+        	/* the threads only run the loops that can not be selected */
+        	SelectableCoapTransport selectable = (SelectableCoapTransport) transport;
+        	loopMember = new LoopMember();
+        	eventLoop = eventLoopGroup.next();
+        	eventLoop.addMember(loopMember);
+        	for (int i = 0; i < loops; i++) {
+        		SelectableChannel channel = selectable.getSelectableChannel(i);
+        		if (channel != null) {
+        			eventLoopGroup.next().register(channel, loopMember, i);
+        		} else {
+        			receiveThreads[i].start();
+        		}
+        	}
+        } else {
+        	workerThread.start();
+        	for (int i = 0; i < loops; i++) {
+        		receiveThreads[i].start();
+        	}
+        }
+    }
+    
+    /**
+     * @return The number of receive loops (threads) of this socket handler.
+     */
+    public int getReactorCount() {
+    	return receiveThreads.length;
+    }
+    
+    public CoapTransport getTransport() {
+    	return transport;
     }
     
     public BasicCoapSocketHandler(CoapChannelManager channelManager) throws IOException {
         this(channelManager, 0);
     }
     
+    /**
+     * Lets each unicast receive loop spin on a non-blocking receive on a
+     * thread of its own, instead of waiting for a selector. A received
+     * message no longer waits for the wakeup of a thread, at the cost of one
+     * busy core per loop. Spinning stops when the transport is closed,
+     * otherwise busy polling can not be switched off. A loop that already
+     * waits in its selector switches with its next datagram.
+     * @param spins
+     *            unsuccessful polls before the loop parks between the polls
+     * @param parkNanos
+     *            time parked between two polls once spinning did not
+     *            receive anything, bounds the added latency
+     */
+    public synchronized void setBusyPoll(int spins, long parkNanos) {
+    	if (spins < 0 || parkNanos < 1) {
+    		throw new IllegalArgumentException("invalid busy poll parameters");
+    	}
+    	if (!(transport instanceof SelectableCoapTransport)) {
+    		throw new IllegalStateException("transport does not support non-blocking receive");
+    	}
+    	busyPollSpins = spins;
+    	busyPollParkNanos = parkNanos;
+    	SelectableCoapTransport selectable = (SelectableCoapTransport) transport;
+    	for (int i = 0; i < receiveThreads.length; i++) {
+    		/* the multicast loop keeps blocking */
+    		if (selectable.getSelectableChannel(i) != null) {
+    			receiveThreads[i].startBusyPoll();
+    		}
+    	}
+    }
+    
+    /**
+     * Enables zero copy decoding of unicast datagrams. The datagrams are
+     * received into direct buffers and the payload of a received message is a
+     * read-only view of that buffer ({@link CoapMessage#getPayloadBuffer()}).
+     * The view is only valid while the message is handled, applications that
+     * keep a received message beyond the callback must call
+     * {@link CoapMessage#retain()}. getPayload() still returns a copy.
+     * @param zeroCopy
+     */
+    public void setZeroCopyReceive(boolean zeroCopy) {
+    	this.zeroCopyReceive = zeroCopy;
+    }
+    
+    public boolean isZeroCopyReceive() {
+    	return zeroCopyReceive;
+    }
+    
+    /**
+     * Sets the executor that runs the channel callbacks (and with them
+     * CoapServer.onRequest() and CoapClient.onResponse()), so that a slow
+     * application does not block the receive loop, e.g.
+     * DispatchExecutors.getShared(). null (default) runs the callbacks on
+     * the receive thread. Received messages are retained for the handoff,
+     * so zero copy payloads are copied out of the receive buffer. See
+     * {@link DispatchExecutors}.
+     * @param executor
+     */
+    public void setDispatchExecutor(Executor executor) {
+    	this.dispatchExecutor = executor;
+    }
+    
+    public Executor getDispatchExecutor() {
+    	return dispatchExecutor;
+    }
+    
+    /**
+     * @param ordered true (default): the messages of a channel are handled
+     *        one after another in the order of reception. false: messages
+     *        are handed to the dispatch executor independently.
+     */
+    public void setDispatchOrdered(boolean ordered) {
+    	this.dispatchOrdered = ordered;
+    }
+    
+    /**
+     * Enables admission control of incoming requests: requests beyond the
+     * limits of the controller are answered with 5.03 (Service Unavailable)
+     * right away, requests that waited too long for dispatch are dropped.
+     * Requests only queue up with a dispatch executor, see
+     * setDispatchExecutor(). null disables admission control.
+     * @param admissionController
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+    	this.admissionController = admissionController;
+    }
+    
+    public AdmissionController getAdmissionController() {
+    	return admissionController;
+    }
+    
+    /**
+     * Enables pooled messages. Received messages are taken from the pool and
+     * recycled after they were handled, together with the responses created
+     * by the server channels once they were sent (CON messages when their
+     * exchange ends). Like the payload view of zero copy receiving, a
+     * received message is only valid during the callback: applications that
+     * keep it must call {@link CoapMessage#retain()} and may give it back
+     * with {@link CoapMessage#release()}, otherwise it is left to the garbage
+     * collector. A pooled message must not be used or sent again once it was
+     * passed to sendMessage(). null (default) disables pooling.
+     * @param messagePool
+     */
+    public void setMessagePool(CoapMessagePool messagePool) {
+    	this.messagePool = messagePool;
+    }
+    
+    public CoapMessagePool getMessagePool() {
+    	return messagePool;
+    }
+    
+    /* gives the reference of the socket handler back, a misused message must not stop a thread of the handler */
+    private static void release(CoapMessage msg) {
+    	try {
+    		msg.release();
+    	} catch (IllegalStateException e) {
+    		logger.error("pooled message was released twice", e);
+    	}
+    }
+    
+    /* runs a callback of a channel on the dispatch executor, if one is set */
+    private void runCallback(CoapChannel channel, Runnable task) {
+    	Executor executor = dispatchExecutor;
+    	if (executor == null) {
+    		task.run();
+    		return;
+    	}
+    	dispatchQueue(channel, executor).execute(task);
+    }
+    
+    private Executor dispatchQueue(CoapChannel channel, Executor executor) {
+    	if (dispatchOrdered && channel instanceof BasicCoapChannel) {
+    		return ((BasicCoapChannel) channel).getDispatchQueue(executor);
+    	}
+    	return executor;
+    }
+    
+    /**
+     * Allows any number of client channels to the same remote endpoint, e.g.
+     * if the socket is shared by all clients of a process. The responses of
+     * the channels are told apart by token, ACK and RST by message ID.
+     * @param multiplex
+     */
+    public void setMultiplexClientChannels(boolean multiplex) {
+    	this.multiplexClientChannels = multiplex;
+    }
+    
+    public boolean isMultiplexClientChannels() {
+    	return multiplexClientChannels;
+    }
+    
+    /**
+     * Sets the transmission parameters of CON messages of this endpoint.
+     * The RTT estimation of all remote endpoints starts over, parameters
+     * set for a single remote endpoint are discarded.
+     * @param parameters
+     */
+    public void setTransmissionParameters(TransmissionParameters parameters) {
+    	if (parameters == null) {
+    		throw new IllegalArgumentException("transmission parameters must not be null");
+    	}
+    	transmissionParameters = parameters;
+    	peers.clear();
+    }
+    
+    public TransmissionParameters getTransmissionParameters() {
+    	return transmissionParameters;
+    }
+    
+    /**
+     * Sets the transmission parameters for CON messages to a single remote
+     * endpoint, e.g. a peer behind a slow link. Its RTT estimation starts over.
+     * @param remoteAddress
+     * @param remotePort
+     * @param parameters null: use the parameters of this endpoint
+     */
+    public void setTransmissionParameters(InetAddress remoteAddress, int remotePort, TransmissionParameters parameters) {
+    	if (parameters == null) {
+    		peers.remove(remoteAddress, remotePort);
+    	} else {
+    		peers.put(remoteAddress, remotePort, new PeerState(parameters, true));
+    	}
+    }
+    
+    /**
+     * @return The transmission parameters used for a remote endpoint.
+     */
+    public TransmissionParameters getTransmissionParameters(InetAddress remoteAddress, int remotePort) {
+    	PeerState peer = peers.get(remoteAddress, remotePort);
+    	if (peer == null) {
+    		return transmissionParameters;
+    	}
+    	return peer.parameters;
+    }
+    
+    /**
+     * @return The current retransmission timeout of a remote endpoint in
+     *         milliseconds, the initial one if nothing was sent to it yet.
+     */
+    public long getRetransmissionTimeout(InetAddress remoteAddress, int remotePort) {
+    	PeerState peer = peers.get(remoteAddress, remotePort);
+    	if (peer == null) {
+    		return transmissionParameters.getAckTimeout();
+    	}
+    	return peer.getRto(System.currentTimeMillis());
+    }
+    
+    /**
+     * @return A random token that is not used by an exchange of this handler.
+     */
+    byte[] newToken() {
+    	byte[] token = new byte[TOKEN_LENGTH];
+    	do {
+    		ThreadLocalRandom.current().nextBytes(token);
+    	} while (clientExchanges.containsKey(tokenKey(token)));
+    	return token;
+    }
+    
+    /**
+     * Indexes the exchange by its token.
+     * @return The exchange that already uses the token, null if it was registered.
+     */
+    BasicCoapClientChannel.Exchange registerExchange(BasicCoapClientChannel.Exchange exchange) {
+    	return clientExchanges.putIfAbsent(tokenKey(exchange.token), exchange, exchangeLifetime(exchange));
+    }
+    
+    /** a notification was received, keep the observation */
+    void refreshExchange(BasicCoapClientChannel.Exchange exchange) {
+    	clientExchanges.put(tokenKey(exchange.token), exchange, exchangeLifetime(exchange));
+    }
+    
+    void removeExchange(BasicCoapClientChannel.Exchange exchange) {
+    	clientExchanges.remove(tokenKey(exchange.token), exchange);
+    }
+    
+    /** stops the retransmission of a CON message that is no longer of interest */
+    void cancelRetransmission(CoapMessage msg) {
+    	CoapChannel channel = msg.getChannel();
+    	ConExchange exchange = getExchangeState(channel.getRemoteAddress(), channel.getRemotePort()).confirm(msg.getMessageID());
+    	if (exchange != null) {
+    		release(exchange.msg);
+    	}
+    }
+    
+    /** removes all exchanges of a closed channel */
+    void removeExchanges(BasicCoapClientChannel channel) {
+    	for (BasicCoapClientChannel.Exchange exchange : clientExchanges.values()) {
+    		if (exchange.getChannel() == channel) {
+    			removeExchange(exchange);
+    		}
+    	}
+    }
+    
+    /**
+     * @return The exchange of a token, null if there is none.
+     */
+    BasicCoapClientChannel.Exchange getExchange(byte[] token) {
+    	if (token == null || token.length == 0) {
+    		return null;
+    	}
+    	BasicCoapClientChannel.Exchange exchange = clientExchanges.get(tokenKey(token));
+    	/* the key of tokens of different length may collide */
+    	if (exchange == null || !Arrays.equals(exchange.token, token)) {
+    		return null;
+    	}
+    	return exchange;
+    }
+    
+    /**
+     * @return The client channel of a response: by its token, by the remote
+     *         address if the token is unknown.
+     */
+    private CoapClientChannel getResponseChannel(CoapMessage msg, InetSocketAddress addr) {
+    	BasicCoapClientChannel.Exchange exchange = getExchange(msg.getToken());
+    	if (exchange != null) {
+    		return exchange.getChannel();
+    	}
+    	return clientChannels.get(addr.getAddress(), addr.getPort());
+    }
+    
+    private static long exchangeLifetime(BasicCoapClientChannel.Exchange exchange) {
+    	return exchange.isObserve() ? OBSERVE_LIFETIME_MS : CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS;
+    }
+    
+    private static long tokenKey(byte[] token) {
+    	long key = token.length;
+    	for (int i = 0; i < token.length; i++) {
+    		key = (key << 8) | (token[i] & 0xFF);
+    	}
+    	return key;
+    }
+    
+    private PeerState getPeerState(InetAddress inetAddr, int port) {
+    	PeerState peer = peers.get(inetAddr, port);
+    	if (peer == null) {
+    		PeerState created = new PeerState(transmissionParameters, false);
+    		peer = peers.putIfAbsent(inetAddr, port, created);
+    		if (peer == null) {
+    			peer = created;
+    		}
+    	}
+    	return peer;
+    }
+    
+    /**
+     * Sets the number of message IDs that are remembered for duplicate
+     * detection (message IDs generated by the remotes, an ACK is detected
+     * by its pending CON message). Memory is bounded by about 12 bytes per
+     * entry, if more messages arrive within EXCHANGE_LIFETIME the oldest
+     * entries are evicted. Replaces the current tables, the already seen
+     * message IDs are forgotten.
+     * @param capacity
+     */
+    public void setDuplicateDetectionCapacity(int capacity) {
+    	int sliceCapacity = Math.max(capacity / exchangeStates.length, 1);
+    	for (int i = 0; i < exchangeStates.length; i++) {
+    		exchangeStates[i].createDedupeTables(sliceCapacity);
+    	}
+    }
+    
+    /**
+     * @return Number of received messages with a message ID of the remote
+     *         that were detected as duplicates.
+     */
+    public long getDuplicateHits() {
+    	long hits = 0;
+    	for (int i = 0; i < exchangeStates.length; i++) {
+    		hits += exchangeStates[i].duplicateRemote.getHits();
+    	}
+    	return hits;
+    }
+    
+    /**
+     * @return Number of received messages with a message ID of the remote
+     *         that passed duplicate detection.
+     */
+    public long getDuplicateMisses() {
+    	long misses = 0;
+    	for (int i = 0; i < exchangeStates.length; i++) {
+    		misses += exchangeStates[i].duplicateRemote.getMisses();
+    	}
+    	return misses;
+    }
+    
     protected class ReceiveThread extends Thread 
     {
-    	Selector selector = null;
-    	    	
     	private ByteBuffer dgramBuffer;
-    	private boolean MCThread;
-    	public ReceiveThread(boolean multicast)
+    	/** receive buffer for zero copy decoding, allocated on demand */
+    	private ByteBuffer directBuffer = null;
+    	/** the receive loop of the transport served by this thread */
+    	private int loop;
+    	/** spin on receiveNow() instead of waiting in receive(), never reset */
+    	private volatile boolean busyPoll = false;
+    	/** held by an event loop while it receives for this loop */
+    	private final Object receiveLock = new Object();
+    	
+    	public ReceiveThread(int loop)
     	{
     		dgramBuffer = ByteBuffer.allocate(UDP_BUFFER_SIZE); 
-    		MCThread = multicast;
-		    try {
-				selector = Selector.open();
-				dgramChannel.register(selector, SelectionKey.OP_READ);
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
+    		this.loop = loop;
     	}
     	
     	public void run() {
+    		logger.info("Receive Thread " + loop + " started");
     		InetSocketAddress addr = null;
-    		DatagramPacket dgramPacket = new DatagramPacket(dgramBuffer.array(), UDP_BUFFER_SIZE);
-    		
-    		if( MCThread ) 
+    		boolean polling = false;
+    		while (transport.isOpen()) 
     		{
-        		logger.info("MC Thread started");
-        		while( dgramSocket != null) 
-    			{
-	    			dgramBuffer.clear();
-					try 
-					{
-						dgramSocket.receive(dgramPacket);
-						addr = new InetSocketAddress( dgramPacket.getAddress(), dgramPacket.getPort() );
-						dgramBuffer.position(dgramPacket.getLength());
-						handleIncommingMessage(dgramBuffer, addr);
-						//System.out.println("::addr"+addr);
-					} catch (IOException e2) {
-					}
+    			if (busyPoll && !polling) {
+    				/* wait until an event loop left receiveReady(), it uses the same buffers */
+    				synchronized (receiveLock) {
+    					polling = true;
+    				}
     			}
-    		} 
-    		else {
-    			while (dgramChannel != null) 
-    			{
-    			
-    				/* handle incoming packets */
-    				dgramBuffer.clear();
-					try {
-						addr = (InetSocketAddress) dgramChannel.receive(dgramBuffer);
-					} catch (IOException e1) {
-						// TODO Auto-generated catch block
-						e1.printStackTrace();
-					}
-					if (addr != null){
-						logger.log(Level.INFO, "handle incomming msg");
-						handleIncommingMessage(dgramBuffer, addr);
-					}
-				
-				/* handle timeouts */
-				
-					/* TODO: find a good strategy when to update the timeout maps */
-					synchronized(duplicateRemoteMap) {
-						duplicateRemoteMap.update();
-					}
-					synchronized(duplicateHostMap) {
-						duplicateHostMap.update();
-					}
-					synchronized(retransMsgMap) {
-						retransMsgMap.update();
-					}
-					synchronized(timeoutConMsgMap) {
-						timeoutConMsgMap.update();
-					}
-			        
-			        // Wait until new message is in the receive buffer of the socket
-					try {
-						selector.select(0);
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+    			if (!busyPoll && transport instanceof PassThroughCoapTransport) {
+    				receivePassThrough();
+    				continue;
     			}
-			}
+    			/* handle incoming packets */
+    			ByteBuffer buffer = receiveBuffer();
+    			addr = null;
+    			try {
+    				if (busyPoll) {
+    					addr = pollReceive(buffer);
+    				} else {
+    					/* blocks until a datagram was received */
+    					addr = transport.receive(loop, buffer);
+    				}
+    			} catch (IOException e1) {
+    				// TODO Auto-generated catch block
+    				e1.printStackTrace();
+    			}
+    			if (addr != null){
+    				if (logger.isDebugEnabled()) {
+    					logger.debug("handle incomming msg");
+    				}
+    				handleIncommingMessage(buffer, addr);
+    			}
+    		}
     	}
     	
-    	private boolean isHostDuplicate(int msgId){
-    		synchronized( duplicateHostMap ) {
-				if (duplicateHostMap.get(msgId) != null){
-					logger.info("Detected duplicate message");
-					return true;
-				}
+    	/**
+    	 * Receives the send buffer of the peer. With zero copy receive the
+    	 * message is decoded from that buffer, otherwise it is copied once.
+    	 */
+    	private void receivePassThrough() {
+    		PassThroughCoapTransport.Datagram datagram = ((PassThroughCoapTransport) transport).receive(loop);
+    		if (datagram == null) {
+    			return;
+    		}
+    		try {
+    			ByteBuffer buffer = datagram.buffer;
+    			if (zeroCopyReceive && buffer.isDirect()) {
+    				/* handleIncommingMessage() flips the buffer */
+    				buffer.position(buffer.limit());
+    			} else {
+    				buffer = dgramBuffer;
+    				buffer.clear();
+    				buffer.put(datagram.buffer);
+    			}
+    			handleIncommingMessage(buffer, datagram.source);
+    		} finally {
+    			datagram.release();
+    		}
+    	}
+    	
+    	/** switches the loop to busy polling, starts the thread if an event loop served it */
+    	void startBusyPoll() {
+    		busyPoll = true;
+    		if (getState() == Thread.State.NEW) {
+    			setName("CoAP busy poll " + loop);
+    			start();
+    		}
+    	}
+    	
+    	/**
+    	 * Spins on the non-blocking receive, after busyPollSpins unsuccessful
+    	 * polls it parks for busyPollParkNanos between the polls.
+    	 */
+    	private InetSocketAddress pollReceive(ByteBuffer buffer) throws IOException {
+    		SelectableCoapTransport selectable = (SelectableCoapTransport) transport;
+    		int spins = 0;
+    		while (transport.isOpen()) {
+    			InetSocketAddress addr = selectable.receiveNow(loop, buffer);
+    			if (addr != null) {
+    				return addr;
+    			}
+    			if (spins < busyPollSpins) {
+    				spins++;
+    				Thread.onSpinWait();
+    			} else {
+    				LockSupport.parkNanos(busyPollParkNanos);
+    			}
+    		}
+    		return null;
+    	}
+    	
+    	/**
+    	 * Receives the datagrams that are available on a selectable
+    	 * transport. Called by an event loop when the channel is readable.
+    	 * @return false if the loop is busy polling and the event loop must
+    	 *         not select its channel anymore
+    	 */
+    	boolean receiveReady() {
+    		synchronized (receiveLock) {
+    			if (busyPoll) {
+    				/* the buffers belong to the polling thread */
+    				return false;
+    			}
+    			receiveAvailable();
+    			return true;
+    		}
+    	}
+    	
+    	private void receiveAvailable() {
+    		SelectableCoapTransport selectable = (SelectableCoapTransport) transport;
+    		/* limit the batch, the other channels of the event loop are waiting */
+    		for (int n = 0; n < RECEIVE_BATCH_SIZE; n++) {
+    			ByteBuffer buffer = receiveBuffer();
+    			InetSocketAddress addr;
+    			try {
+    				addr = selectable.receiveNow(loop, buffer);
+    			} catch (IOException e) {
+    				if (transport.isOpen()) {
+    					e.printStackTrace();
+    				}
+    				return;
+    			}
+    			if (addr == null) {
+    				return;
+    			}
+    			handleIncommingMessage(buffer, addr);
     		}
+    	}
+    	
+    	/** @return The cleared buffer for the next datagram */
+    	private ByteBuffer receiveBuffer() {
+    		ByteBuffer buffer = dgramBuffer;
+    		if (zeroCopyReceive) {
+    			if (directBuffer == null) {
+    				directBuffer = bufferPool.acquire();
+    			}
+    			buffer = directBuffer;
+    		}
+    		buffer.clear();
+    		return buffer;
+    	}
+    	
+    	/**
+    	 * Message IDs of the host are not recorded, they are reused once the
+    	 * message ID counter wrapped. An ACK is a duplicate if the remote
+    	 * already confirmed its CON message.
+    	 */
+    	private boolean isHostDuplicate(CoapPacketType packetType, ConExchange confirmed){
+			if (packetType == CoapPacketType.ACK && confirmed == null){
+				logger.info("Detected duplicate message");
+				return true;
+			}
 			return false;
 		}
     	
-    	private boolean isRemoteDuplicate(MessageKey msgKey){
-    		synchronized( duplicateRemoteMap ) {
-				if (duplicateRemoteMap.get(msgKey) != null){
-					logger.info("Detected duplicate message");
-					return true;
-				}
-    		}
+    	/* records the message, so that the next copy is detected */
+    	private boolean isRemoteDuplicate(ExchangeState state, long dedupeKey, long now){
+			if (state.duplicateRemote.checkAndRecord(dedupeKey, now)){
+				logger.info("Detected duplicate message");
+				return true;
+			}
 			return false;
 		}
 		
-		private void retransmitRemoteDuplicate(MessageKey msgKey){
-			CoapMessage retransMsg;
-			synchronized( retransMsgMap ) {
-				retransMsg = (CoapMessage) retransMsgMap.get(msgKey);
-			}
-			if (retransMsg == null){
+		private void retransmitRemoteDuplicate(ExchangeState state, MessageKey msgKey, InetSocketAddress addr){
+			byte[] wire = state.retransMsgMap.get(msgKey);
+			if (wire == null){
 				logger.warn("Detected duplicate message but no response could be found");
 			} else {
-				workerThread.addMessageToSendBuffer(retransMsg);
+				/* replay the stored bytes directly, the worker is not involved */
+				sendWire(wire, addr);
 			}		
 		}
     	
     	private void handleIncommingMessage(ByteBuffer buffer, InetSocketAddress addr) 
     	{
 			CoapMessage msg;
+			boolean zeroCopy = buffer.isDirect();
+			CoapMessagePool pool = messagePool;
 			try 
 			{
-				 msg = AbstractCoapMessage.parseMessage(buffer.array(), buffer.position());
+				if (pool != null) {
+					buffer.flip();
+					msg = pool.parse(buffer, zeroCopy);
+				} else if (zeroCopy) {
+					/* the payload of the message refers to the receive buffer */
+					buffer.flip();
+					msg = AbstractCoapMessage.parseMessage(buffer);
+				} else {
+					msg = AbstractCoapMessage.parseMessage(buffer.array(), buffer.position());
+				}
 				 //System.out.println("!::");
 				 
 			} catch (Exception e) {
@@ -312,15 +821,27 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				return;
 			}
 			
+			try {
+				dispatchMessage(msg, addr);
+			} finally {
+				/* a pooled message is recycled unless it was retained */
+				release(msg);
+			}
+    	}
+    	
+    	private void dispatchMessage(CoapMessage msg, InetSocketAddress addr) 
+    	{
 			CoapPacketType packetType = msg.getPacketType();
 			int msgId = msg.getMessageID();
 			MessageKey msgKey = new MessageKey(msgId, addr.getAddress(), addr.getPort());
+			long dedupeKey = DedupeTable.messageKey(addr.getAddress(), addr.getPort(), msgId);
+			long now = System.currentTimeMillis();
+			ExchangeState state = getExchangeState(addr.getAddress(), addr.getPort());
 			
 			//System.out.println("::"+new String(msg.getPayload()));
 			
 			if (msg.isRequest())
 			{
-				System.out.println("isRequest");
 				/* --- INCOMING REQUEST: This is an incoming client request with a message key generated by the remote client*/
 				if (packetType == CoapPacketType.ACK || packetType == CoapPacketType.RST){
 					logger.warn("Invalid Packet Type: Request can not be in a ACK or a RST packet");
@@ -328,15 +849,15 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				}
 				
 				/* check for duplicates and retransmit the response if a duplication is detected */
-				if (isRemoteDuplicate(msgKey))
+				if (isRemoteDuplicate(state, dedupeKey, now))
 				{
-					retransmitRemoteDuplicate(msgKey);
+					retransmitRemoteDuplicate(state, msgKey, addr);
 					return;
 				}
 
 				
 				/* find or create server channel and handle incoming message */
-				CoapServerChannel channel = serverChannels.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+				CoapServerChannel channel = serverChannels.get(addr.getAddress(), addr.getPort());
 				
 				if (channel == null)
 				{
@@ -344,9 +865,13 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 					channel = channelManager.createServerChannel(BasicCoapSocketHandler.this, msg, addr.getAddress(), addr.getPort());
 					if (channel != null)
 					{
-						/* add the new channel to the channel map */
-						addServerChannel(channel);
-						logger.info("Created new server channel.");
+						/* add the new channel to the channel map, another reactor may have been faster */
+						CoapServerChannel existing = serverChannels.putIfAbsent(addr.getAddress(), addr.getPort(), channel);
+						if (existing != null) {
+							channel = existing;
+						} else {
+							logger.info("Created new server channel.");
+						}
 
 					} else 
 					{
@@ -361,14 +886,22 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				} 
 				msg.setChannel(channel);
 				
+				AdmissionController admission = admissionController;
+				if (admission != null) {
+					if (!admission.admit()) {
+						/* overloaded: shed the request before it is queued */
+						rejectRequest(channel, msg, admission);
+						return;
+					}
+					deliverRequest(channel, msg, admission, state, dedupeKey, now);
+					return;
+				}
 				
-				channel.handleMessage(msg);
+				deliver(channel, msg);
 				return;
 				
 			} else if (msg.isResponse())
 			{
-				System.out.println("isResponse");
-				
 				/* --- INCOMING RESPONSE: This is an incoming server response (message ID generated by host) 
 				 * or a separate server response (message ID generated by remote)*/
 				
@@ -380,23 +913,23 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				/* check for separate response */
 				if (packetType == CoapPacketType.CON){
 					/* This is a separate response, the message ID is generated by the remote */
-					if (isRemoteDuplicate(msgKey)){
-						retransmitRemoteDuplicate(msgKey);
+					if (isRemoteDuplicate(state, dedupeKey, now)){
+						retransmitRemoteDuplicate(state, msgKey, addr);
 						return;
 					}
 					/* This is a separate Response */
-					CoapClientChannel channel = clientChannels.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+					CoapClientChannel channel = getResponseChannel(msg, addr);
 					if (channel == null){
 						logger.warn("Could not find channel of incomming separat response: message dropped");
 						return;
 					}
 					msg.setChannel(channel);
-					channel.handleMessage(msg);
+					deliver(channel, msg);
 					return;
 				}
 				
-				/* normal response (ACK or NON), message id was generated by host */
-				if (isHostDuplicate(msgId)){
+				/* a NON response has a message id generated by the remote */
+				if (packetType == CoapPacketType.NON && isRemoteDuplicate(state, dedupeKey, now)){
 					/* drop duplicate responses */
 					return;
 				}
@@ -404,45 +937,38 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				/* confirm the request*/
 				/* confirm message by removing it from the non confirmedMsgMap*/
 				/* Corresponding to the spec the server should be aware of a NON as answer to a CON*/
-				synchronized( timeoutConMsgMap ) {
-					timeoutConMsgMap.remove(msgId);
+				ConExchange confirmed = state.confirm(msgId, now);
+				
+				/* piggybacked response (ACK), message id was generated by host */
+				if (isHostDuplicate(packetType, confirmed)){
+					/* drop duplicate responses */
+					return;
+				}
+				if (confirmed != null) {
+					release(confirmed.msg);
 				}
 				
-				CoapClientChannel channel = clientChannels.get(new ChannelKey(addr.getAddress(), addr.getPort()));
-				/* If no channel for the message can be found via channel key, it may be a multicast response!
-				 * Check whether the message tokens of the last request and the current response match.
-				 * If still no channel can be found, drop the message! */
-				if (channel == null)
-				{
-					boolean mcResp = false;
-					for( Iterator<ChannelKey> it = clientChannels.keySet().iterator(); it.hasNext(); ) {
-						channel = clientChannels.get(it.next());
-						try {
-							if( new String( channel.getLastToken() ).equals( new String( msg.getToken() ) ) ) {
-								mcResp = true;
-								break;
-							}
-						}
-						catch( Exception e) {
-							System.out.println(e.getMessage());
-						}
+				BasicCoapClientChannel.Exchange exchange = getExchange(msg.getToken());
+				CoapClientChannel channel;
+				if (exchange != null) {
+					channel = exchange.getChannel();
+					if (channel.getRemotePort() != addr.getPort() || !channel.getRemoteAddress().equals(addr.getAddress())) {
+						/* a response to a multicast request */
+						msg.setChannel(channel);
+						deliverMulticast(channel, msg, addr);
+						return;
 					}
-					
-					if( !mcResp ) {
+				} else {
+					/* unknown token, e.g. an empty one set by the application */
+					channel = clientChannels.get(addr.getAddress(), addr.getPort());
+					if (channel == null) {
 						logger.warn("Could not find channel of incomming response: message dropped");
 						return;
-					} else 
-					{
-						msg.setChannel( channel );
-						
-						
-						channel.handleMCResponse(msg, addr.getAddress(), addr.getPort() );
-						return;
 					}
 				}
 				
 				msg.setChannel(channel);
-				channel.handleMessage(msg);
+				deliver(channel, msg);
 				return;
 				
 			} else if (msg.isEmpty()){
@@ -453,21 +979,22 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				}  			
 				
 				/* ACK or RST, Message Id was generated by the host*/
-				if (isHostDuplicate(msgId)){
-					/* drop duplicate responses */
-					return;
-				}
-				
 				/* confirm */
-				synchronized( timeoutConMsgMap ) {
-					timeoutConMsgMap.remove(msgId);
+				ConExchange confirmed = state.confirm(msgId, now);
+				if (isHostDuplicate(packetType, confirmed)){
+					/* drop duplicate responses, a RST may also refer to a NON message */
+					return;
 				}
 				
 				/* get channel */
-				/* This can be an ACK/RST for a client or a server channel */
-				CoapChannel channel = clientChannels.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+				/* This can be an ACK/RST for a client or a server channel, the confirmed message knows it */
+				CoapChannel channel = confirmed != null ? confirmed.channel
+						: clientChannels.get(addr.getAddress(), addr.getPort());
+				if (confirmed != null) {
+					release(confirmed.msg);
+				}
 				if (channel == null){
-					channel = serverChannels.get(new ChannelKey(addr.getAddress(), addr.getPort()));
+					channel = serverChannels.get(addr.getAddress(), addr.getPort());
 				}
 				
 				if (channel == null){
@@ -478,13 +1005,13 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				msg.setChannel(channel);
 				if (packetType == CoapPacketType.ACK ){
 					/* separate response ACK */
-					channel.handleMessage(msg);
+					deliver(channel, msg);
 					return;
 				} 
 				
 				if (packetType == CoapPacketType.RST ){
 					/* connection closed by remote */
-					channel.handleMessage(msg);
+					deliver(channel, msg);
 					return;
 				} 
 				
@@ -492,26 +1019,102 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 				logger.error("Invalid Message Type: not a request, not a response, not empty");
 			}
 		}
+    	
+    	/**
+    	 * Hands the message to the channel, on the dispatch executor if one is set.
+    	 */
+    	private void deliver(final CoapChannel channel, final CoapMessage msg) {
+    		dispatch(channel, msg, new Runnable() {
+    			@Override
+    			public void run() {
+    				channel.handleMessage(msg);
+    			}
+    		});
+    	}
+    	
+    	private void deliverMulticast(final CoapChannel channel, final CoapMessage msg, final InetSocketAddress addr) {
+    		dispatch(channel, msg, new Runnable() {
+    			@Override
+    			public void run() {
+    				channel.handleMCResponse(msg, addr.getAddress(), addr.getPort());
+    			}
+    		});
+    	}
+    	
+    	private void deliverRequest(final CoapChannel channel, final CoapMessage msg, final AdmissionController admission,
+    			final ExchangeState state, final long dedupeKey, final long receiveTime) {
+    		dispatch(channel, msg, new Runnable() {
+    			@Override
+    			public void run() {
+    				long now = System.currentTimeMillis();
+    				if (!admission.start(receiveTime, now)) {
+    					/* the client has retransmitted the request in the meantime, forget it, 
+    					 * so that the next retransmission is not taken for a duplicate */
+    					state.duplicateRemote.remove(dedupeKey, now);
+    					logger.warn("Request expired in the dispatch queue: message dropped");
+    					return;
+    				}
+    				try {
+    					channel.handleMessage(msg);
+    				} finally {
+    					admission.finish();
+    				}
+    			}
+    		});
+    	}
+    	
+    	private void dispatch(CoapChannel channel, final CoapMessage msg, Runnable task) {
+    		Executor executor = dispatchExecutor;
+    		if (executor == null) {
+    			try {
+    				task.run();
+    			} finally {
+    				/* the receive buffer is reused for the next datagram, 
+    				 * options that were not decoded yet are copied */
+    				((AbstractCoapMessage) msg).releaseWireBuffer();
+    			}
+    			return;
+    		}
+    		/* the message outlives the receive buffer */
+    		msg.retain();
+    		if (messagePool != null) {
+    			/* the task holds a reference of the message */
+    			final Runnable handle = task;
+    			task = new Runnable() {
+    				@Override
+    				public void run() {
+    					try {
+    						handle.run();
+    					} finally {
+    						release(msg);
+    					}
+    				}
+    			};
+    		}
+    		dispatchQueue(channel, executor).execute(task);
+    	}
+    	
+    	private void rejectRequest(CoapServerChannel channel, CoapMessage request, AdmissionController admission) {
+    		CoapResponse response = channel.createResponse(request, CoapResponseCode.Service_Unavailable_503);
+    		response.setMaxAge(admission.getRetryAfterSeconds());
+    		channel.sendMessage(response);
+    	}
     };
  
  
     protected class WorkerThread extends Thread {
         Selector selector = null;
 
-		public ConcurrentLinkedQueue<CoapMessage> sendBuffer = new ConcurrentLinkedQueue<CoapMessage>();
-				
-		ByteBuffer dgramBuffer;
+        /** lock-free send queue, the worker thread is the only consumer */
+		private MpscArrayQueue<CoapMessage> sendQueue = new MpscArrayQueue<CoapMessage>(SEND_QUEUE_CAPACITY);
+		/** takes messages when the send queue is full, messages are never dropped */
+		private ConcurrentLinkedQueue<CoapMessage> overflowQueue = new ConcurrentLinkedQueue<CoapMessage>();
+		/** true while the worker (possibly) waits in select(), only then a wakeup is required */
+		private AtomicBoolean sleeping = new AtomicBoolean(false);
 
 		public WorkerThread()
 		{
-			dgramBuffer = ByteBuffer.allocate(UDP_BUFFER_SIZE); 
-		    try {
-				selector = Selector.open();
-				/* No selection key is 0, because channel does not know, when new message are ins sendBuffer anyway. */
-				dgramChannel.register(selector, 0);
-			} catch (IOException e1) {
-				e1.printStackTrace();
-			}
+			super("CoAP worker");
 		}
 
 		public void close() {
@@ -519,29 +1122,41 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 	        	clientChannels.clear();
 	        if (serverChannels != null)
 	        	serverChannels.clear();
+	        peers.clear();
+	        clientExchanges.clear();
 	        
-	        try {
-				dgramChannel.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-	        /* TODO: wake up thread and kill it*/
+	        transport.close();
+	        if (selector != null) {
+	        	selector.wakeup();
+	        }
 		}
 		
 		@Override
 		public void run() 
 		{
 		    logger.log(Level.INFO, "Receive Thread started.");
+		    try {
+		    	/* the selector is only used to wait for new messages or the next timeout */
+		    	selector = Selector.open();
+		    } catch (IOException e1) {
+		    	e1.printStackTrace();
+		    	return;
+		    }
 			long waitFor = POLLING_INTERVALL;
-			while (dgramChannel != null) 
+			while (transport.isOpen()) 
 			{
+				/* one timestamp for the whole batch */
+				long now = System.currentTimeMillis();
 				/* send all messages in the send buffer */
-				sendBufferedMessages();
-				waitFor = handleTimeouts();
-		        /* When sendBuffer is empty, wait until
+				sendBufferedMessages(now);
+				waitFor = handleTimeouts(now);
+		        /* When the queues are empty, wait until
 		         * 1. selector.wakeup() is called by sendMessage()
-		         * 2. timeout */
-				if( sendBuffer.isEmpty() ) {
+		         * 2. timeout 
+		         * sleeping must be set before the queues are checked, otherwise a
+		         * producer could miss the wakeup */
+				sleeping.set(true);
+				if( sendQueue.isEmpty() && overflowQueue.isEmpty() ) {
 					try {
 						selector.select(waitFor);
 					} catch (IOException e) {
@@ -549,24 +1164,56 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 						e.printStackTrace();
 					}
 				}
+				sleeping.set(false);
 			}
 		}
 		
-		protected synchronized void addMessageToSendBuffer(CoapMessage msg){
-			sendBuffer.add(msg);
-			/* send immediately */
-			selector.wakeup();
+		protected void addMessageToSendBuffer(CoapMessage msg){
+			if (!sendQueue.offer(msg)) {
+				overflowQueue.add(msg);
+			}
+			if (eventLoop != null) {
+				eventLoop.wakeup();
+				return;
+			}
+			/* only wake up the worker if it waits, consecutive messages share one wakeup */
+			if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+				selector.wakeup();
+			}
 		}
 		
-		private void sendBufferedMessages() {
-			CoapMessage msg = sendBuffer.poll();
+		/**
+		 * One round of the worker, run by an event loop.
+		 * @return Milliseconds until the next timeout, -1 if there is none.
+		 */
+		long runTasks(long now) {
+			sendBufferedMessages(now);
+			return timingWheel.advance(now);
+		}
+		
+		boolean hasQueuedMessages() {
+			return !sendQueue.isEmpty() || !overflowQueue.isEmpty();
+		}
+		
+		private void sendBufferedMessages(long now) {
+			/* limit the batch to the queue capacity, so that timeouts are handled in time */
+			int budget = sendQueue.capacity();
+			CoapMessage msg = sendQueue.poll();
+			while(msg != null){
+				sendUdpMsg(msg, now);
+				if (--budget == 0) {
+					break;
+				}
+				msg = sendQueue.poll();
+			}
+			msg = overflowQueue.poll();
 			while(msg != null){
-				sendUdpMsg(msg);
-				msg = sendBuffer.poll();
+				sendUdpMsg(msg, now);
+				msg = overflowQueue.poll();
 			}
 		}			
 		
-		private void sendUdpMsg(CoapMessage msg) 
+		private void sendUdpMsg(CoapMessage msg, long now) 
 		{
 			//System.out.println("teststes");
 			if (msg == null){
@@ -577,57 +1224,105 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 			InetAddress inetAddr = msg.getChannel().getRemoteAddress();
 			int port = msg.getChannel().getRemotePort();
 			int msgId = msg.getMessageID();
+			ExchangeState state = getExchangeState(inetAddr, port);
 			
-			//System.out.println("::inetAddr:"+inetAddr);
-			//System.out.println("::msgId:"+msgId);
-			if (packetType == CoapPacketType.CON)
-			{
-				/* in case of a CON this is a Request
-				 * requests must be added to the timeout queue 
-				 * except this was the last retransmission */
-				if(msg.maxRetransReached())
+			ByteBuffer buffer = bufferPool.acquire();
+		    try {
+		    	/* serialize first, a message that can not be serialized is not put to any map */
+		    	msg.serializeTo(buffer);
+		    	buffer.flip();
+		    	
+				if (packetType == CoapPacketType.CON)
 				{
-					/* the connection is broken */
-					synchronized( timeoutConMsgMap ) 
-					{
-						timeoutConMsgMap.remove(msgId);
-					}
-					msg.getChannel().lostConnection(true, false);
-					return;
-				}
-				msg.incRetransCounterAndTimeout();
-				synchronized( timeoutConMsgMap ) {
-					timeoutConMsgMap.put(msgId, msg);
-				}
-				TimeoutObject<Integer> tObj = new TimeoutObject<Integer>(msgId, msg.getTimeout() + System.currentTimeMillis());
-				synchronized( timeoutQueue ) {
-					timeoutQueue.add(tObj);
+					/* in case of a CON this is a Request
+					 * requests must be added to the timeout queue, 
+					 * retransmissions reuse the captured bytes */
+					ConExchange exchange = state.getOrCreateExchange(msg);
+					exchange.wire = copyWire(buffer);
+					exchange.start(getPeerState(inetAddr, port), now);
+					timingWheel.schedule(exchange, exchange.timeout, now);
 				}
-			}
-			
-			if (packetType == CoapPacketType.ACK || packetType == CoapPacketType.RST){
-				/* save this type of messages for a possible retransmission */
-				synchronized( retransMsgMap ) {
-					retransMsgMap.put(new MessageKey(msgId, inetAddr, port), msg);
+				
+				if (packetType == CoapPacketType.ACK || packetType == CoapPacketType.RST){
+					/* save the bytes of this type of messages for a possible retransmission */
+					state.retransMsgMap.put(new MessageKey(msgId, inetAddr, port), copyWire(buffer));
 				}
-			}
-			
-			/* Nothing to do for NON*/
-			
-			/* send message*/
-			ByteBuffer buf = ByteBuffer.wrap(msg.serialize());
-			/*TODO: check if serialization could fail... then do not put it to any Map!*/
-		    try {
-		    	//System.out.println("inetAddr::"+inetAddr);
-		    	dgramChannel.send(buf, new InetSocketAddress(inetAddr, port));
+				
+				/* Nothing to do for NON*/
+		    	
+		    	if (send(buffer, msg.getChannel().getRemoteSocketAddress())) {
+		    		/* the receiver releases the buffer */
+		    		buffer = null;
+		    	}
 		    	
-		    	logger.log(Level.INFO, "Send Msg with ID: " + msg.getMessageID());
+		    	if (logger.isDebugEnabled()) {
+		    		logger.debug("Send Msg with ID: " + msg.getMessageID());
+		    	}
 		    } catch (IOException e) 
 		    {
 		    	e.printStackTrace();
 		    	logger.error("Send UDP message failed");
+		    } finally {
+		    	bufferPool.release(buffer);
+		    	if (packetType != CoapPacketType.CON) {
+		    		/* a pooled message is recycled once it is sent, a CON message when its exchange ends */
+		    		release(msg);
+		    	}
 		    }
 		}
+		
+		/**
+		 * Retransmits the captured bytes of an unconfirmed CON message.
+		 */
+		private void retransmit(ConExchange exchange, long now)
+		{
+			final CoapMessage msg = exchange.msg;
+			final CoapChannel channel = exchange.channel;
+			if (exchange.retransmissions >= exchange.peer.parameters.getMaxRetransmit())
+			{
+				/* the connection is broken */
+				if (exchange.state.confirm(exchange.messageId) != exchange) {
+					/* confirmed in the meantime */
+					return;
+				}
+				/* the application is notified like for a received message, a slow
+				 * callback must not stall the worker or the event loop */
+				runCallback(channel, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (channel instanceof BasicCoapClientChannel) {
+								/* frees the window of the channel for its queued requests */
+								((BasicCoapClientChannel) channel).requestFailed(msg);
+							}
+							channel.lostConnection(true, false);
+						} finally {
+							release(msg);
+						}
+					}
+				});
+				return;
+			}
+			exchange.backoff();
+			timingWheel.schedule(exchange, exchange.timeout, now);
+			/* the message itself may already be recycled, only the captured state is used */
+			sendWire(exchange.wire, channel.getRemoteSocketAddress());
+			logger.log(Level.INFO, "Retransmit Msg with ID: " + exchange.messageId);
+		}
+		
+	    /**
+		 * Advances the timing wheel: retransmits unconfirmed messages and
+		 * removes expired exchange state.
+		 * @return Milliseconds until the next tick. POLLING_INTERVALL if there is no timeout to wait for.
+		 */
+		private long handleTimeouts(long now){
+			long nextTimeout = timingWheel.advance(now);
+			if (nextTimeout < 0){
+				return POLLING_INTERVALL;
+			}
+			/* select(0) would block forever */
+			return Math.max(nextTimeout, 1);
+		}
 	}
     
     private class MessageKey{
@@ -681,73 +1376,258 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 		}
     }
     
-    private class TimeoutObject<T> implements Comparable<TimeoutObject>{
-    	private long expires;
-    	private T object;
+    /**
+     * Duplicate detection and retransmission state of a subset of the remote
+     * endpoints. The slice of a remote endpoint is chosen by its address and
+     * port, not by the receive loop: the worker (sending, retransmissions)
+     * and the application threads (cancelRetransmission()) must find the
+     * state of an endpoint without knowing which loop the kernel assigned it
+     * to. A slice is therefore not owned by a loop, the slices are lock
+     * stripes: every loop and the worker may access every slice, but two
+     * endpoints only contend if they hash to the same slice.
+     * 
+     * Locking: the dedupe table is synchronized, the retransMsgMap is a
+     * concurrent map and timeoutConMsgMap is guarded by itself. Retransmissions are
+     * driven by the timing wheel of the socket handler, stored ACK/RST
+     * messages are removed by the SweepTask, both on the worker thread.
+     */
+    private class ExchangeState {
+    	/** recently received message keys of a remote (message id generated by the remote) to detect duplications */
+    	volatile DedupeTable duplicateRemote;
+    	/** contains all messages that (possibly) needs to be retransmitted (ACK, RST)*/
+    	ExpiringMap<MessageKey, byte[]> retransMsgMap = new ExpiringMap<MessageKey, byte[]>(CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
+    	/** contains all messages that are not confirmed yet (CON), 
+    	 * MessageID is always generated by Host and therefore unique */
+    	HashMap<Integer, ConExchange> timeoutConMsgMap = new HashMap<Integer, ConExchange>();
     	
-    	public TimeoutObject(T object, long expires) {
-			this.expires = expires;
-			this.object = object;
-		}
+    	ExchangeState(int dedupeCapacity) {
+    		createDedupeTables(dedupeCapacity);
+    	}
     	
-		public T getObject() {
-			return object;
-		}
-
-		public int compareTo(TimeoutObject o){
-    		 return (int) (this.expires - o.expires);
+    	void createDedupeTables(int dedupeCapacity) {
+    		duplicateRemote = new DedupeTable(dedupeCapacity, CoapMessage.ACK_RST_RETRANS_TIMEOUT_MS);
+    	}
+    	
+    	ConExchange getOrCreateExchange(CoapMessage msg) {
+    		synchronized (timeoutConMsgMap) {
+    			ConExchange exchange = timeoutConMsgMap.get(msg.getMessageID());
+    			if (exchange == null || exchange.msg != msg) {
+    				if (exchange != null) {
+    					timingWheel.cancel(exchange);
+    					release(exchange.msg);
+    				}
+    				exchange = new ConExchange(this, msg);
+    				timeoutConMsgMap.put(msg.getMessageID(), exchange);
+    			}
+    			return exchange;
+    		}
+    	}
+    	
+    	ConExchange getExchange(int msgId) {
+    		synchronized (timeoutConMsgMap) {
+    			return timeoutConMsgMap.get(msgId);
+    		}
+    	}
+    	
+    	/** the exchange failed: stop retransmitting immediately */
+    	ConExchange confirm(int msgId) {
+    		ConExchange exchange;
+    		synchronized (timeoutConMsgMap) {
+    			exchange = timeoutConMsgMap.remove(msgId);
+    		}
+    		if (exchange != null) {
+    			timingWheel.cancel(exchange);
+    		}
+    		return exchange;
+    	}
+    	
+    	/** the message was confirmed by the remote: stop retransmitting and measure the RTT */
+    	ConExchange confirm(int msgId, long now) {
+    		ConExchange exchange = confirm(msgId);
+    		if (exchange != null && exchange.peer != null) {
+    			exchange.peer.sample(exchange, now);
+    		}
+    		return exchange;
     	}
     }
     
     /**
-	 * @return Milliseconds until the next timeout expires. POLLING_INTERVALL if there is no timeout to wait for.
-	 */
-	private long handleTimeouts(){
-		long nextTimeout = POLLING_INTERVALL; 
-		
-		while (true){
-			TimeoutObject<Integer> tObj;
-			synchronized( timeoutQueue ) {
-				tObj = timeoutQueue.peek();
-			}
-			if (tObj == null){
-				/* timeout queue is empty */
-				nextTimeout = POLLING_INTERVALL;
-				break;
-			}
-			
-			nextTimeout = tObj.expires - System.currentTimeMillis();
-			if (nextTimeout > 0){
-				/* timeout not expired */
-				break;
-			}
-			/* timeout expired, sendMessage will send the message and create a new timeout 
-			 * if the message was already confirmed, nonConfirmedMsgMap.get() will return null */
-			synchronized( timeoutQueue ) {
-				timeoutQueue.poll();
-			}
-			Integer msgId = tObj.object;
-			
-			/* retransmit message after expired timeout*/
-			
-			CoapMessage msg = null;
-			synchronized( timeoutConMsgMap ) {
-				msg = (CoapMessage) timeoutConMsgMap.get(msgId);
-			}
-			if( msg != null )
-				sendMessage( msg );				
-		}
-		return nextTimeout;
-	}
+     * An unconfirmed CON message. The exchange is scheduled on the timing
+     * wheel for each (re)transmission.
+     */
+    private class ConExchange extends TimingWheel.Timeout {
+    	final ExchangeState state;
+    	final CoapMessage msg;
+    	/* captured, a pooled message is recycled as soon as the exchange ends */
+    	final int messageId;
+    	final CoapChannel channel;
+    	/** the serialized message, sent again on every retransmission */
+    	byte[] wire;
+    	/** written by the worker thread only */
+    	volatile PeerState peer;
+    	volatile long firstSent;
+    	volatile int retransmissions;
+    	long rto;
+    	long timeout;
+    	
+    	ConExchange(ExchangeState state, CoapMessage msg) {
+    		this.state = state;
+    		this.msg = msg;
+    		this.messageId = msg.getMessageID();
+    		this.channel = msg.getChannel();
+    	}
+    	
+    	/** (re)starts the exchange with a randomized initial timeout */
+    	void start(PeerState peer, long now) {
+    		TransmissionParameters parameters = peer.parameters;
+    		this.rto = peer.getRto(now);
+    		this.timeout = (long) (rto * (1 + ThreadLocalRandom.current().nextDouble()
+    				* (parameters.getAckRandomFactor() - 1)));
+    		this.retransmissions = 0;
+    		this.firstSent = now;
+    		this.peer = peer;
+    	}
+    	
+    	void backoff() {
+    		double factor = peer.parameters.isAdaptive() ? RttEstimator.backoffFactor(rto) : 2;
+    		timeout = (long) (timeout * factor);
+    		retransmissions++;
+    	}
+    	
+    	@Override
+    	protected void expired(long now) {
+    		/* runs on the worker thread, if the message was confirmed in the meantime it is not in the map anymore */
+    		if (state.getExchange(messageId) == this) {
+    			workerThread.retransmit(this, now);
+    		}
+    	}
+    }
+    
+    /**
+     * Transmission parameters and RTT estimation of a remote endpoint.
+     */
+    private static class PeerState {
+    	final TransmissionParameters parameters;
+    	/** the parameters were set for this endpoint, keep them if its channels are removed */
+    	final boolean configured;
+    	final RttEstimator rtt;
+    	
+    	PeerState(TransmissionParameters parameters, boolean configured) {
+    		this.parameters = parameters;
+    		this.configured = configured;
+    		this.rtt = parameters.isAdaptive() ? new RttEstimator(parameters.getAckTimeout()) : null;
+    	}
+    	
+    	long getRto(long now) {
+    		if (rtt == null) {
+    			return parameters.getAckTimeout();
+    		}
+    		return rtt.getRto(now);
+    	}
+    	
+    	void sample(ConExchange exchange, long now) {
+    		if (rtt == null) {
+    			return;
+    		}
+    		/* Karn: with retransmissions the RTT is ambiguous, only the weak estimator uses it */
+    		int retransmissions = exchange.retransmissions;
+    		long rttMs = Math.max(now - exchange.firstSent, 1);
+    		if (retransmissions == 0) {
+    			rtt.updateStrong(rttMs, now);
+    		} else if (retransmissions <= RttEstimator.MAX_WEAK_RETRANSMISSIONS) {
+    			rtt.updateWeak(rttMs, now);
+    		}
+    	}
+    }
     
-	private void addClientChannel(CoapClientChannel channel) {
-        clientChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+    /**
+     * The work of this handler if it is served by an event loop.
+     */
+    private class LoopMember implements EventLoopGroup.Member {
+    	@Override
+    	public long runTasks(long now) {
+    		if (!transport.isOpen()) {
+    			return -1;
+    		}
+    		return workerThread.runTasks(now);
+    	}
+    	
+    	@Override
+    	public boolean hasQueuedWork() {
+    		return workerThread.hasQueuedMessages();
+    	}
+    	
+    	@Override
+    	public boolean readable(int loop) {
+    		return receiveThreads[loop].receiveReady();
+    	}
     }
-	
-	private void addServerChannel(CoapServerChannel channel) {
-        serverChannels.put(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()), channel);
+    
+    /**
+     * Periodically removes the expired ACK/RST bytes of all slices.
+     */
+    private class SweepTask extends TimingWheel.Timeout {
+    	@Override
+    	protected void expired(long now) {
+    		for (int i = 0; i < exchangeStates.length; i++) {
+    			exchangeStates[i].retransMsgMap.expire(now);
+    		}
+    		clientExchanges.expire(now);
+    		timingWheel.schedule(this, SWEEP_INTERVAL_MS, now);
+    	}
     }
-	
+    
+    /**
+     * @return A copy of the remaining bytes of the buffer, its position is unchanged.
+     */
+    private static byte[] copyWire(ByteBuffer buffer) {
+    	byte[] wire = new byte[buffer.remaining()];
+    	buffer.duplicate().get(wire);
+    	return wire;
+    }
+    
+    /**
+     * Sends already serialized bytes through a pooled direct buffer. Can be
+     * called by any thread, the send() of a transport is thread safe.
+     */
+    private void sendWire(byte[] wire, InetSocketAddress addr) {
+    	ByteBuffer buffer = bufferPool.acquire();
+    	try {
+    		buffer.put(wire);
+    		buffer.flip();
+    		if (send(buffer, addr)) {
+    			buffer = null;
+    		}
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    		logger.error("Send UDP message failed");
+    	} finally {
+    		bufferPool.release(buffer);
+    	}
+    }
+    
+    /**
+     * Sends a pooled buffer.
+     * @return true if the transport took the buffer, it must not be released
+     */
+    private boolean send(ByteBuffer buffer, InetSocketAddress addr) throws IOException {
+    	if (transport instanceof PassThroughCoapTransport) {
+    		return ((PassThroughCoapTransport) transport).send(buffer, bufferPool, addr);
+    	}
+    	transport.send(buffer, addr);
+    	return false;
+    }
+    
+    /* the stripe of a remote endpoint, see ExchangeState */
+    private ExchangeState getExchangeState(InetAddress inetAddr, int port) {
+    	if (exchangeStates.length == 1) {
+    		return exchangeStates[0];
+    	}
+    	int hash = 31 * inetAddr.hashCode() + port;
+    	hash ^= (hash >>> 16);
+    	return exchangeStates[(hash & 0x7FFFFFFF) % exchangeStates.length];
+    }
+    
 	@Override
     public int getLocalPort() {
 		return localPort;
@@ -755,18 +1635,56 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
 
 	@Override
     public void removeClientChannel(CoapClientChannel channel) {
-        clientChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
+        clientChannels.remove(channel.getRemoteAddress(), channel.getRemotePort(), channel);
+        removePeerState(channel.getRemoteAddress(), channel.getRemotePort());
     }
 	
 	@Override
     public void removeServerChannel(CoapServerChannel channel) {
-        serverChannels.remove(new ChannelKey(channel.getRemoteAddress(), channel.getRemotePort()));
+        serverChannels.remove(channel.getRemoteAddress(), channel.getRemotePort(), channel);
+        removePeerState(channel.getRemoteAddress(), channel.getRemotePort());
+    }
+    
+    /**
+     * @return The NSTART window of a remote endpoint, shared by all client
+     *         channels to it. Released by the channel on close.
+     */
+    BasicCoapClientChannel.RequestWindow acquireRequestWindow(InetAddress inetAddr, int port) {
+    	synchronized (requestWindows) {
+    		BasicCoapClientChannel.RequestWindow window = requestWindows.get(inetAddr, port);
+    		if (window == null) {
+    			window = new BasicCoapClientChannel.RequestWindow();
+    			requestWindows.put(inetAddr, port, window);
+    		}
+    		window.channels++;
+    		return window;
+    	}
+    }
+    
+    void releaseRequestWindow(InetAddress inetAddr, int port, BasicCoapClientChannel.RequestWindow window) {
+    	synchronized (requestWindows) {
+    		if (--window.channels == 0) {
+    			requestWindows.remove(inetAddr, port, window);
+    		}
+    	}
+    }
+    
+    /** forget the RTT of a remote endpoint once it has no channel left */
+    private void removePeerState(InetAddress inetAddr, int port) {
+    	PeerState peer = peers.get(inetAddr, port);
+    	if (peer != null && !peer.configured
+    			&& !clientChannels.containsKey(inetAddr, port) && !serverChannels.containsKey(inetAddr, port)) {
+    		peers.remove(inetAddr, port, peer);
+    	}
     }
 
 
     @Override
     public void close() {
     	workerThread.close();
+    	if (eventLoop != null) {
+    		eventLoop.removeMember(loopMember);
+    	}
     }
 
     @Override
@@ -784,7 +1702,8 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
     		return null;
     	}
 
-    	if (clientChannels.containsKey(new ChannelKey(remoteAddress, remotePort))){
+    	boolean multiplex = multiplexClientChannels;
+    	if (!multiplex && clientChannels.containsKey(remoteAddress, remotePort)){
     		/* channel already exists */
     		logger.warn("Cannot connect: Client channel already exists");
     		return null;
@@ -793,10 +1712,22 @@ public class BasicCoapSocketHandler implements CoapSocketHandler {
     	CoapClientChannel channel = new BasicCoapClientChannel(this, client, remoteAddress, remotePort);
     	
     	
-        addClientChannel(channel);
+    	if (clientChannels.putIfAbsent(remoteAddress, remotePort, channel) != null && !multiplex){
+    		/* concurrent connect to the same endpoint, the channel leaves its request window */
+    		logger.warn("Cannot connect: Client channel already exists");
+    		channel.close();
+    		return null;
+    	}
         return channel;
     }
 
+    /**
+     * @return The pool of direct buffers used for sending and receiving.
+     */
+    public ByteBufferPool getBufferPool() {
+    	return bufferPool;
+    }
+
     @Override
     public CoapChannelManager getChannelManager() {
         return this.channelManager;
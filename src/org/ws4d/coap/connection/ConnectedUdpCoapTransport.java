@@ -0,0 +1,152 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.apache.log4j.Logger;
+import org.ws4d.coap.interfaces.SelectableCoapTransport;
+
+/**
+ * UDP transport of a client session with a single server. The
+ * DatagramChannel is connected to the server: the kernel drops datagrams
+ * of other sources, and write()/read() skip the address of every datagram.
+ * Meant for high request rates to a few servers, a socket per server is
+ * used instead of the socket shared by all client channels.
+ */
+public class ConnectedUdpCoapTransport implements SelectableCoapTransport {
+	private final static Logger logger = Logger.getLogger(ConnectedUdpCoapTransport.class);
+
+	private final DatagramChannel dgramChannel;
+	/** the source of every received datagram */
+	private final InetSocketAddress remote;
+	/** used by receive(), if the transport is not served by an event loop */
+	private final Selector selector;
+	private final int localPort;
+	private volatile boolean open = true;
+
+	/**
+	 * @param remote
+	 *            the server, the only endpoint to send to and receive from
+	 * @throws IOException
+	 */
+	public ConnectedUdpCoapTransport(InetSocketAddress remote) throws IOException {
+		if (remote.isUnresolved()) {
+			throw new IllegalArgumentException("unresolved address " + remote);
+		}
+		this.remote = remote;
+		dgramChannel = DatagramChannel.open();
+		dgramChannel.socket().bind(new InetSocketAddress(0));
+		dgramChannel.connect(remote);
+		dgramChannel.configureBlocking(false);
+		localPort = dgramChannel.socket().getLocalPort();
+		selector = Selector.open();
+		dgramChannel.register(selector, SelectionKey.OP_READ);
+	}
+
+	public InetSocketAddress getRemoteAddress() {
+		return remote;
+	}
+
+	@Override
+	public int getReceiveLoopCount() {
+		return 1;
+	}
+
+	@Override
+	public InetSocketAddress receive(int loop, ByteBuffer buffer) throws IOException {
+		while (open && dgramChannel.isOpen()) {
+			InetSocketAddress addr = receiveNow(loop, buffer);
+			if (addr != null) {
+				return addr;
+			}
+			/* Wait until new message is in the receive buffer of the socket */
+			try {
+				selector.select(0);
+				selector.selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				/* the transport was closed */
+				return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public SelectableChannel getSelectableChannel(int loop) {
+		return dgramChannel;
+	}
+
+	@Override
+	public InetSocketAddress receiveNow(int loop, ByteBuffer buffer) throws IOException {
+		int length;
+		try {
+			length = dgramChannel.read(buffer);
+		} catch (PortUnreachableException e) {
+			/* ICMP of an earlier datagram, the retransmissions decide whether the server is gone */
+			logger.debug("server " + remote + " not reachable");
+			return null;
+		}
+		/* 0: no datagram available */
+		return length <= 0 ? null : remote;
+	}
+
+	@Override
+	public void send(ByteBuffer buffer, InetSocketAddress remote) throws IOException {
+		if (!this.remote.equals(remote)) {
+			throw new IOException("transport is connected to " + this.remote + ", can not send to " + remote);
+		}
+		try {
+			dgramChannel.write(buffer);
+		} catch (PortUnreachableException e) {
+			logger.debug("server " + remote + " not reachable");
+		}
+	}
+
+	@Override
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		try {
+			dgramChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		/* wakes up a receive loop that waits in select() */
+		try {
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,245 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.connection;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A fixed set of selector threads shared by socket handlers. A socket handler
+ * registers as a member of one loop, which sends its queued messages and
+ * advances its timing wheel, and registers the channels of its receive loops
+ * (possibly at other loops), which receive its datagrams. A socket handler
+ * served by a group does not start any thread of its own.
+ */
+public class EventLoopGroup {
+	private final static Logger logger = Logger.getLogger(EventLoopGroup.class);
+
+	/** the longest a loop sleeps without a timeout to wait for */
+	private static final long MAX_SELECT_MS = 10000;
+
+	/**
+	 * Work of a socket handler that is done by an event loop.
+	 */
+	interface Member {
+		/**
+		 * Sends queued messages and handles due timeouts.
+		 * @return Milliseconds until the next timeout, -1 if there is none.
+		 */
+		long runTasks(long now);
+
+		/**
+		 * @return true if runTasks() has something to do right away.
+		 */
+		boolean hasQueuedWork();
+
+		/**
+		 * The channel of a receive loop of the member is readable.
+		 * @return false if the loop must not be selected anymore
+		 */
+		boolean readable(int loop);
+	}
+
+	private final EventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	/**
+	 * @param threads
+	 *            number of event loops, e.g. the number of cores
+	 */
+	public EventLoopGroup(int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("at least one event loop is required");
+		}
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop(i);
+		}
+		for (int i = 0; i < threads; i++) {
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * @return A group with one loop per core.
+	 */
+	public static EventLoopGroup createDefault() throws IOException {
+		return new EventLoopGroup(Runtime.getRuntime().availableProcessors());
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	/**
+	 * @return The next loop, round robin.
+	 */
+	EventLoop next() {
+		return loops[(next.getAndIncrement() & 0x7FFFFFFF) % loops.length];
+	}
+
+	/**
+	 * Stops all loops. The members keep their sockets, but nothing is sent
+	 * or received anymore.
+	 */
+	public void shutdown() {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i].shutdown();
+		}
+	}
+
+	private static class Registration {
+		final SelectableChannel channel;
+		final Member member;
+		final int loop;
+
+		Registration(SelectableChannel channel, Member member, int loop) {
+			this.channel = channel;
+			this.member = member;
+			this.loop = loop;
+		}
+	}
+
+	/**
+	 * One selector thread.
+	 */
+	static class EventLoop extends Thread {
+		private final Selector selector;
+		private final CopyOnWriteArrayList<Member> members = new CopyOnWriteArrayList<Member>();
+		/** channels are registered by the loop itself, register() would block while it selects */
+		private final ConcurrentLinkedQueue<Registration> registrations = new ConcurrentLinkedQueue<Registration>();
+		/** true while the loop (possibly) waits in select(), only then a wakeup is required */
+		private final AtomicBoolean sleeping = new AtomicBoolean(false);
+		private volatile boolean running = true;
+
+		EventLoop(int index) throws IOException {
+			super("CoAP event loop " + index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		void addMember(Member member) {
+			members.add(member);
+			wakeup();
+		}
+
+		void removeMember(Member member) {
+			members.remove(member);
+		}
+
+		/**
+		 * Registers the (non-blocking) channel of a receive loop of a member.
+		 * The registration is cancelled when the channel is closed.
+		 */
+		void register(SelectableChannel channel, Member member, int loop) {
+			registrations.add(new Registration(channel, member, loop));
+			selector.wakeup();
+		}
+
+		/** called by a member when it has queued work */
+		void wakeup() {
+			if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+				selector.wakeup();
+			}
+		}
+
+		void shutdown() {
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				registerChannels();
+				long now = System.currentTimeMillis();
+				long waitFor = MAX_SELECT_MS;
+				boolean queued = false;
+				for (Member member : members) {
+					try {
+						long next = member.runTasks(now);
+						if (next >= 0 && next < waitFor) {
+							waitFor = next;
+						}
+					} catch (RuntimeException e) {
+						logger.error("event loop task failed", e);
+					}
+				}
+				/* sleeping must be set before the queues are checked, otherwise a member could miss the wakeup */
+				sleeping.set(true);
+				for (Member member : members) {
+					if (member.hasQueuedWork()) {
+						queued = true;
+						break;
+					}
+				}
+				try {
+					if (queued) {
+						selector.selectNow();
+					} else {
+						/* select(0) would block forever */
+						selector.select(Math.max(waitFor, 1));
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				sleeping.set(false);
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (key.isValid()) {
+						Registration registration = (Registration) key.attachment();
+						try {
+							if (!registration.member.readable(registration.loop)) {
+								key.cancel();
+							}
+						} catch (RuntimeException e) {
+							/* a failing member must not stop the loop */
+							logger.error("receive failed", e);
+						}
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void registerChannels() {
+			Registration registration = registrations.poll();
+			while (registration != null) {
+				try {
+					registration.channel.register(selector, SelectionKey.OP_READ, registration);
+				} catch (ClosedChannelException e) {
+					/* the member was closed in the meantime */
+				}
+				registration = registrations.poll();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.connection;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ws4d.coap.interfaces.PassThroughCoapTransport;
+import org.ws4d.coap.tools.ByteBufferPool;
+
+/**
+ * In-JVM transport for tests and benchmarks. Endpoints are addressed by the
+ * loopback address and a port, datagrams are passed through a bounded queue
+ * of the receiving endpoint without touching the network stack. Like UDP, a
+ * datagram to an unknown port or to a full queue is dropped.
+ *
+ * A socket handler passes its pooled send buffer through the queue, the
+ * receiving handler decodes the datagram from that buffer and gives it back
+ * to the pool of the sender. Only the plain CoapTransport methods copy.
+ */
+public class LoopbackCoapTransport implements PassThroughCoapTransport {
+
+	/** default capacity of the receive queue */
+	public static final int QUEUE_CAPACITY = 4096;
+	/** ports chosen by the transport start here */
+	public static final int FIRST_EPHEMERAL_PORT = 49152;
+
+	private static final ConcurrentHashMap<Integer, LoopbackCoapTransport> endpoints = new ConcurrentHashMap<Integer, LoopbackCoapTransport>();
+	private static final AtomicInteger nextPort = new AtomicInteger(0);
+
+	/** wakes up one blocked receive loop on close */
+	private static final Datagram CLOSED = new Datagram(null, null, null);
+
+	private final BlockingQueue<Datagram> queue;
+	private final int localPort;
+	private final InetSocketAddress localAddress;
+	private final int receiveLoops;
+	private volatile boolean open = true;
+
+	public LoopbackCoapTransport() {
+		this(0, 1, QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param port
+	 *            local port, 0 chooses a free port
+	 * @param receiveLoops
+	 *            number of receive loops sharing the receive queue
+	 * @param queueCapacity
+	 *            number of datagrams that can be queued
+	 */
+	public LoopbackCoapTransport(int port, int receiveLoops, int queueCapacity) {
+		if (receiveLoops < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("invalid loopback transport parameters");
+		}
+		this.queue = new ArrayBlockingQueue<Datagram>(queueCapacity);
+		this.receiveLoops = receiveLoops;
+		if (port == 0) {
+			int range = 0x10000 - FIRST_EPHEMERAL_PORT;
+			for (int n = 0;; n++) {
+				if (n == range) {
+					throw new IllegalStateException("no free loopback port");
+				}
+				port = FIRST_EPHEMERAL_PORT + (nextPort.getAndIncrement() & 0x7FFFFFFF) % range;
+				if (endpoints.putIfAbsent(port, this) == null) {
+					break;
+				}
+			}
+		} else if (endpoints.putIfAbsent(port, this) != null) {
+			throw new IllegalStateException("address already in use");
+		}
+		this.localPort = port;
+		this.localAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+	}
+
+	/**
+	 * @return The address other loopback endpoints use to reach this one.
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return localAddress;
+	}
+
+	@Override
+	public int getReceiveLoopCount() {
+		return receiveLoops;
+	}
+
+	@Override
+	public Datagram receive(int loop) {
+		Datagram datagram;
+		try {
+			datagram = queue.take();
+		} catch (InterruptedException e) {
+			/* keep the interrupt visible to the receive loop */
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (datagram == CLOSED) {
+			return null;
+		}
+		return datagram;
+	}
+
+	@Override
+	public InetSocketAddress receive(int loop, ByteBuffer buffer) {
+		Datagram datagram = receive(loop);
+		if (datagram == null) {
+			return null;
+		}
+		ByteBuffer data = datagram.buffer;
+		if (data.remaining() > buffer.remaining()) {
+			/* truncated like a datagram that does not fit */
+			data.limit(data.position() + buffer.remaining());
+		}
+		buffer.put(data);
+		datagram.release();
+		return datagram.source;
+	}
+
+	@Override
+	public boolean send(ByteBuffer buffer, ByteBufferPool pool, InetSocketAddress remote) {
+		LoopbackCoapTransport target = getTarget(remote);
+		if (target == null) {
+			return false;
+		}
+		return target.queue.offer(new Datagram(buffer, pool, localAddress));
+	}
+
+	@Override
+	public void send(ByteBuffer buffer, InetSocketAddress remote) {
+		LoopbackCoapTransport target = getTarget(remote);
+		if (target == null) {
+			return;
+		}
+		/* the buffer of the sender is reused after send() returns */
+		ByteBuffer data = ByteBuffer.allocate(buffer.remaining());
+		data.put(buffer);
+		data.flip();
+		target.queue.offer(new Datagram(data, null, localAddress));
+	}
+
+	/** @return The open endpoint of the address, null if the datagram is dropped */
+	private LoopbackCoapTransport getTarget(InetSocketAddress remote) {
+		if (!open || !remote.getAddress().isLoopbackAddress()) {
+			return null;
+		}
+		LoopbackCoapTransport target = endpoints.get(remote.getPort());
+		if (target == null || !target.open) {
+			return null;
+		}
+		return target;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		if (!open) {
+			return;
+		}
+		open = false;
+		endpoints.remove(localPort, this);
+		/* queued buffers go back to their pools */
+		Datagram datagram = queue.poll();
+		while (datagram != null) {
+			if (datagram != CLOSED) {
+				datagram.release();
+			}
+			datagram = queue.poll();
+		}
+		for (int i = 0; i < receiveLoops; i++) {
+			queue.offer(CLOSED);
+		}
+	}
+}
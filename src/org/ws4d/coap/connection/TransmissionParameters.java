@@ -0,0 +1,98 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.connection;
+
+import org.ws4d.coap.interfaces.CoapMessage;
+
+/**
+ * Transmission parameters of CON messages of a socket handler, see rfc7252 -
+ * 4.8. "Transmission Parameters". If adaptive is set, ackTimeout is only the
+ * initial RTO of a remote endpoint, later RTOs follow the measured round trip
+ * times (CoCoA). NSTART limits the number of outstanding CON requests of a
+ * client channel, further requests wait in the backlog of the channel.
+ */
+public class TransmissionParameters {
+
+	/** rfc7252: a client has at most one outstanding interaction with a server */
+	public static final int DEFAULT_NSTART = 1;
+
+	/** the parameters of rfc7252 with adaptive RTOs */
+	public static final TransmissionParameters DEFAULT = new TransmissionParameters(
+			CoapMessage.RESPONSE_TIMEOUT_MS, CoapMessage.RESPONSE_RANDOM_FACTOR,
+			CoapMessage.MAX_RETRANSMIT, true);
+
+	private final int ackTimeout;
+	private final double ackRandomFactor;
+	private final int maxRetransmit;
+	private final boolean adaptive;
+	private final int nstart;
+
+	/**
+	 * @param ackTimeoutMs
+	 *            (initial) timeout of a CON message
+	 * @param ackRandomFactor
+	 *            the initial timeout is chosen between ackTimeout and
+	 *            ackTimeout * ackRandomFactor
+	 * @param maxRetransmit
+	 *            number of retransmissions before the exchange fails
+	 * @param adaptive
+	 *            adapt the timeout to the round trip times of each remote endpoint
+	 */
+	public TransmissionParameters(int ackTimeoutMs, double ackRandomFactor, int maxRetransmit, boolean adaptive) {
+		this(ackTimeoutMs, ackRandomFactor, maxRetransmit, adaptive, DEFAULT_NSTART);
+	}
+
+	/**
+	 * @param ackTimeoutMs
+	 * @param ackRandomFactor
+	 * @param maxRetransmit
+	 * @param adaptive
+	 * @param nstart
+	 *            maximum number of outstanding CON requests to a remote
+	 *            endpoint, only values above 1 for capable servers
+	 */
+	public TransmissionParameters(int ackTimeoutMs, double ackRandomFactor, int maxRetransmit, boolean adaptive,
+			int nstart) {
+		if (ackTimeoutMs < 1 || ackRandomFactor < 1 || maxRetransmit < 0 || nstart < 1) {
+			throw new IllegalArgumentException("invalid transmission parameters");
+		}
+		this.ackTimeout = ackTimeoutMs;
+		this.ackRandomFactor = ackRandomFactor;
+		this.maxRetransmit = maxRetransmit;
+		this.adaptive = adaptive;
+		this.nstart = nstart;
+	}
+
+	public int getAckTimeout() {
+		return ackTimeout;
+	}
+
+	public double getAckRandomFactor() {
+		return ackRandomFactor;
+	}
+
+	public int getMaxRetransmit() {
+		return maxRetransmit;
+	}
+
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	public int getNstart() {
+		return nstart;
+	}
+}
@@ -0,0 +1,261 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+
+import org.apache.log4j.Logger;
+import org.ws4d.coap.interfaces.SelectableCoapTransport;
+
+/**
+ * UDP transport. The unicast receive loops own one DatagramChannel each, all
+ * channels are bound to the same port using SO_REUSEPORT, so that the kernel
+ * distributes incoming datagrams (by source address) among the loops. The
+ * last receive loop receives from a MulticastSocket that joined the CoAP
+ * multicast groups, a transport of a client endpoint can do without it.
+ */
+public class UdpCoapTransport implements SelectableCoapTransport {
+	private final static Logger logger = Logger.getLogger(UdpCoapTransport.class);
+
+	/** the first channel is also used for sending */
+	private DatagramChannel dgramChannel = null;
+	/** all unicast channels bound to the local port (more than one if SO_REUSEPORT is used) */
+	private DatagramChannel[] dgramChannels = null;
+	private Selector[] selectors = null;
+	private MulticastSocket dgramSocket = null;
+	/** receive array of the multicast loop, used if the buffer has no array */
+	private byte[] multicastBuffer = null;
+	private int localPort;
+	private volatile boolean open = true;
+
+	/**
+	 * @param port
+	 *            local port, 0 chooses a free port
+	 * @param reactorCount
+	 *            number of unicast receive loops, e.g. the number of cores.
+	 *            Falls back to a single loop if SO_REUSEPORT is not supported.
+	 * @throws IOException
+	 */
+	public UdpCoapTransport(int port, int reactorCount) throws IOException {
+		this(port, reactorCount, true);
+	}
+
+	/**
+	 * @param port
+	 * @param reactorCount
+	 * @param multicast
+	 *            join the CoAP multicast groups with an additional socket
+	 *            and receive loop
+	 * @throws IOException
+	 */
+	public UdpCoapTransport(int port, int reactorCount, boolean multicast) throws IOException {
+		if (reactorCount < 1) {
+			throw new IllegalArgumentException("at least one receive loop is required");
+		}
+
+		dgramChannel = DatagramChannel.open();
+		boolean reusePort = reactorCount > 1
+				&& dgramChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		if (reactorCount > 1 && !reusePort) {
+			logger.warn("SO_REUSEPORT is not supported: using a single receive loop");
+			reactorCount = 1;
+		}
+		bindChannel(dgramChannel, port, reusePort);
+		this.localPort = dgramChannel.socket().getLocalPort();
+
+		dgramChannels = new DatagramChannel[reactorCount];
+		dgramChannels[0] = dgramChannel;
+		for (int i = 1; i < reactorCount; i++) {
+			/* bind to the resolved port, port may have been 0 */
+			dgramChannels[i] = DatagramChannel.open();
+			bindChannel(dgramChannels[i], localPort, true);
+		}
+		selectors = new Selector[reactorCount];
+		for (int i = 0; i < reactorCount; i++) {
+			selectors[i] = Selector.open();
+			dgramChannels[i].register(selectors[i], SelectionKey.OP_READ);
+		}
+
+		if (!multicast) {
+			return;
+		}
+		boolean found = false;
+		Enumeration<NetworkInterface> Interfaces = NetworkInterface.getNetworkInterfaces();
+		NetworkInterface NetworkAdapter = null;
+		while (!found && Interfaces != null && Interfaces.hasMoreElements()) {
+			NetworkAdapter = Interfaces.nextElement();
+			if (NetworkAdapter.isUp() && !NetworkAdapter.isLoopback()) {
+				found = true;
+			}
+		}
+
+		dgramSocket = new MulticastSocket(port);
+		dgramSocket.setReuseAddress(true);
+		if (found) {
+			dgramSocket.setNetworkInterface(NetworkAdapter);
+		} else {
+			logger.warn("No network interface is up: joining the multicast groups on the default interface");
+		}
+		dgramSocket.setSoTimeout(0);
+		dgramSocket.setReceiveBufferSize(BasicCoapSocketHandler.RECEIVE_BUFFER_SIZE);
+
+		dgramSocket.joinGroup(InetAddress.getByName("ff02::fd"));
+		dgramSocket.joinGroup(InetAddress.getByName("ff05::fd"));
+		dgramSocket.joinGroup(InetAddress.getByName("224.0.1.187"));
+
+		logger.debug("Create Group");
+		// Group 1
+		dgramSocket.joinGroup(InetAddress.getByName("224.0.1.188"));
+
+		// Group 2
+		dgramSocket.joinGroup(InetAddress.getByName("224.0.1.189"));
+	}
+
+	private void bindChannel(DatagramChannel channel, int port, boolean reusePort) throws IOException {
+		channel.socket().setReuseAddress(true);
+		if (reusePort) {
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		channel.socket().bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * @return The number of unicast receive loops.
+	 */
+	public int getReactorCount() {
+		return dgramChannels.length;
+	}
+
+	@Override
+	public int getReceiveLoopCount() {
+		/* unicast loops and the multicast loop */
+		return dgramSocket == null ? dgramChannels.length : dgramChannels.length + 1;
+	}
+
+	@Override
+	public InetSocketAddress receive(int loop, ByteBuffer buffer) throws IOException {
+		if (loop == dgramChannels.length) {
+			return receiveMulticast(buffer);
+		}
+		DatagramChannel channel = dgramChannels[loop];
+		while (open && channel.isOpen()) {
+			InetSocketAddress addr = (InetSocketAddress) channel.receive(buffer);
+			if (addr != null) {
+				return addr;
+			}
+			/* Wait until new message is in the receive buffer of the socket */
+			try {
+				selectors[loop].select(0);
+				selectors[loop].selectedKeys().clear();
+			} catch (ClosedSelectorException e) {
+				/* the transport was closed */
+				return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public SelectableChannel getSelectableChannel(int loop) {
+		/* the multicast socket has no channel */
+		return loop < dgramChannels.length ? dgramChannels[loop] : null;
+	}
+
+	@Override
+	public InetSocketAddress receiveNow(int loop, ByteBuffer buffer) throws IOException {
+		return (InetSocketAddress) dgramChannels[loop].receive(buffer);
+	}
+
+	private InetSocketAddress receiveMulticast(ByteBuffer buffer) throws IOException {
+		if (!open) {
+			return null;
+		}
+		DatagramPacket dgramPacket;
+		if (buffer.hasArray()) {
+			dgramPacket = new DatagramPacket(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		} else {
+			if (multicastBuffer == null) {
+				multicastBuffer = new byte[buffer.capacity()];
+			}
+			dgramPacket = new DatagramPacket(multicastBuffer, Math.min(multicastBuffer.length, buffer.remaining()));
+		}
+		try {
+			dgramSocket.receive(dgramPacket);
+		} catch (IOException e) {
+			if (!open) {
+				/* the socket was closed */
+				return null;
+			}
+			throw e;
+		}
+		if (buffer.hasArray()) {
+			buffer.position(buffer.position() + dgramPacket.getLength());
+		} else {
+			buffer.put(multicastBuffer, 0, dgramPacket.getLength());
+		}
+		return new InetSocketAddress(dgramPacket.getAddress(), dgramPacket.getPort());
+	}
+
+	@Override
+	public void send(ByteBuffer buffer, InetSocketAddress remote) throws IOException {
+		dgramChannel.send(buffer, remote);
+	}
+
+	@Override
+	public int getLocalPort() {
+		return localPort;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		for (int i = 0; i < dgramChannels.length; i++) {
+			try {
+				dgramChannels[i].close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			/* wakes up a receive loop that waits in select() */
+			try {
+				selectors[i].close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (dgramSocket != null) {
+			dgramSocket.close();
+		}
+	}
+}
@@ -16,6 +16,7 @@
 package org.ws4d.coap.interfaces;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 import org.ws4d.coap.messages.CoapBlockOption.CoapBlockSize;
 
@@ -48,6 +49,12 @@ public interface CoapChannel {
 	 */
 	public int getRemotePort();
 
+	/**
+	 * 
+	 * @return the remote address and port as socket address
+	 */
+	public InetSocketAddress getRemoteSocketAddress();
+
 	/**
 	 * handles an incoming message
 	 * @param message - the message to be handled
@@ -49,6 +49,32 @@ public interface CoapChannelManager {
 	 */
 	public void createServerListener(CoapServer serverListener, int localPort);
 
+	/**
+	 * creates a server socket listener for incoming connections that uses
+	 * more than one receive loop for the local port
+	 * @param serverListener
+	 * @param localPort
+	 * @param receiveLoops number of receive loops, e.g. the number of cores
+	 */
+	public void createServerListener(CoapServer serverListener, int localPort,
+			int receiveLoops);
+
+	/**
+	 * creates a server socket listener on top of the given transport
+	 * @param serverListener
+	 * @param transport e.g. an in-memory loopback transport
+	 */
+	public void createServerListener(CoapServer serverListener,
+			CoapTransport transport);
+
+	/**
+	 * @param localPort
+	 *            the port given when the server listener or connection was
+	 *            created
+	 * @return The socket handler of the local port or null.
+	 */
+	public CoapSocketHandler getSocketHandler(int localPort);
+
 	/**
 	 * called by a client to create a connection 
 	 * @param client
@@ -60,6 +86,38 @@ public interface CoapChannelManager {
 	public CoapClientChannel connect(CoapClient client, InetAddress addr,
 			int port);
 
+	/**
+	 * called by a client to create a connection using the given transport
+	 * @param client
+	 * @param addr
+	 * @param port
+	 * @param transport
+	 * @return
+	 */
+	public CoapClientChannel connect(CoapClient client, InetAddress addr,
+			int port, CoapTransport transport);
+
+	/**
+	 * called by a client to create a connection over a socket of its own
+	 * that is connected to the server. The kernel filters the datagrams of
+	 * the server, meant for high request rates to a few servers.
+	 * @param client
+	 * @param addr
+	 * @param port
+	 * @return
+	 */
+	public CoapClientChannel connectDedicated(CoapClient client, InetAddress addr,
+			int port);
+
+	/**
+	 * Lets connect() multiplex all client channels over a fixed number of
+	 * sockets instead of opening a socket (and its threads) per channel.
+	 * Applies to later connects.
+	 * @param count
+	 *            number of shared client sockets, 0 opens a socket per channel
+	 */
+	public void setSharedClientEndpoints(int count);
+
 	/**
 	 * This function is for testing purposes only, to have a determined message
 	 * id
@@ -16,6 +16,7 @@
 package org.ws4d.coap.interfaces;
 
 import org.ws4d.coap.messages.CoapRequestCode;
+import org.ws4d.coap.messages.CoapRequestTemplate;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -31,6 +32,24 @@ public interface CoapClientChannel extends CoapChannel {
 	public CoapRequest createRequest(boolean reliable,
 			CoapRequestCode requestCode);
 
+	/**
+	 * Builds the options of a request that is sent repeatedly once, see
+	 * {@link CoapRequestTemplate}. For other options create the template from
+	 * a prototype request.
+	 * @param reliable
+	 * @param requestCode
+	 * @param uriPath
+	 * @return The template, use it with createRequest(CoapRequestTemplate).
+	 */
+	public CoapRequestTemplate createRequestTemplate(boolean reliable,
+			CoapRequestCode requestCode, String uriPath);
+
+	/**
+	 * @param template
+	 * @return A new request of the template with its own message ID and token.
+	 */
+	public CoapRequest createRequest(CoapRequestTemplate template);
+
 	/**
 	 * 
 	 * @param request
@@ -55,4 +74,18 @@ public interface CoapClientChannel extends CoapChannel {
 	 * @return
 	 */
 	public byte[] getLastToken();
+
+	/**
+	 * CON requests beyond NSTART outstanding requests are queued by the
+	 * channel and sent when an outstanding request completes.
+	 * @return Number of queued requests.
+	 */
+	public int getQueuedRequestCount();
+
+	/**
+	 * The request is no longer of interest: it is removed from the queue, or
+	 * its retransmission is stopped and a response is ignored.
+	 * @param request
+	 */
+	public void cancelRequest(CoapRequest request);
 }
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.interfaces;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.messages.AbstractCoapMessage.CoapHeaderOptionType;
 import org.ws4d.coap.messages.CoapBlockOption;
 import org.ws4d.coap.messages.CoapMediaType;
@@ -77,6 +79,14 @@ public interface CoapMessage {
 	 */
 	public byte[] serialize();
 
+	/**
+	 * Writes the serialized form of the message into the buffer, starting at
+	 * its current position. No temporary arrays are allocated.
+	 * @param buffer The target buffer, must have enough remaining space.
+	 * @return The number of bytes written.
+	 */
+	public int serializeTo(ByteBuffer buffer);
+
 	//TODO: Documentation
 	/**
 	 * 
@@ -117,6 +127,35 @@ public interface CoapMessage {
 	 */
 	public int getPayloadLength();
 
+	/**
+	 * Get the payload without copying it. For messages received in zero copy
+	 * mode this is a read-only view of the receive buffer, which is only valid
+	 * during the callback that handles the message (see {@link #retain()}).
+	 * @return A read-only buffer containing the payload, null if there is no payload.
+	 */
+	public ByteBuffer getPayloadBuffer();
+
+	/**
+	 * Must be called by an application that uses a received message after
+	 * the callback returned. Copies all data that still refers to the
+	 * receive buffer (zero copy mode). A pooled message (see
+	 * {@link org.ws4d.coap.messages.CoapMessagePool}) also gets another
+	 * reference: the holder must give it back with {@link #release()} once
+	 * it is done with the message, otherwise the message is never recycled.
+	 * @throws IllegalStateException if the pooled message was already released
+	 */
+	public void retain();
+
+	/**
+	 * Gives a message obtained from a message pool back (see
+	 * {@link org.ws4d.coap.messages.CoapMessagePool}). A pooled message is
+	 * recycled when the socket handler and every holder that called
+	 * {@link #retain()} released it, it must not be used afterwards. Has no
+	 * effect on other messages.
+	 * @throws IllegalStateException if the message was already released
+	 */
+	public void release();
+
 	/**
 	 * Change the media type of the message.
 	 * @param mediaType The new media type.
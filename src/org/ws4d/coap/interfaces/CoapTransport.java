@@ -0,0 +1,69 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.interfaces;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram transport beneath a CoapSocketHandler. The socket handler runs one
+ * receive thread per receive loop and sends from any thread.
+ */
+public interface CoapTransport {
+
+	/**
+	 * @return Number of receive loops, each loop is served by its own thread.
+	 */
+	public int getReceiveLoopCount();
+
+	/**
+	 * Blocks until a datagram is received. The datagram is written to the
+	 * buffer starting at its position, a datagram that does not fit is
+	 * truncated.
+	 * @param loop
+	 *            index of the receive loop
+	 * @param buffer
+	 * @return The source of the datagram, null if nothing was received (e.g.
+	 *         the transport was closed).
+	 * @throws IOException
+	 */
+	public InetSocketAddress receive(int loop, ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram. Must be thread
+	 * safe.
+	 * @param buffer
+	 * @param remote
+	 * @throws IOException
+	 */
+	public void send(ByteBuffer buffer, InetSocketAddress remote) throws IOException;
+
+	/**
+	 * @return The local port.
+	 */
+	public int getLocalPort();
+
+	/**
+	 * @return false after close() was called.
+	 */
+	public boolean isOpen();
+
+	/**
+	 * Closes the transport, blocked receive() calls return.
+	 */
+	public void close();
+}
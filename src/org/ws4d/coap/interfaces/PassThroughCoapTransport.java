@@ -0,0 +1,64 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.interfaces;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.ws4d.coap.tools.ByteBufferPool;
+
+/**
+ * A transport that hands the send buffer itself to the receiver instead of
+ * copying the datagram, e.g. an in-JVM transport. The buffers come from the
+ * pool of the sending socket handler, the receiver gives them back.
+ */
+public interface PassThroughCoapTransport extends CoapTransport {
+
+	/**
+	 * A received datagram, between position and limit of the buffer.
+	 */
+	public static final class Datagram {
+		public final ByteBuffer buffer;
+		public final InetSocketAddress source;
+		private final ByteBufferPool pool;
+
+		public Datagram(ByteBuffer buffer, ByteBufferPool pool, InetSocketAddress source) {
+			this.buffer = buffer;
+			this.pool = pool;
+			this.source = source;
+		}
+
+		/** gives the buffer back to the pool of the sender, it must not be used afterwards */
+		public void release() {
+			if (pool != null) {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Sends the bytes between position and limit of the buffer and takes
+	 * the buffer, it is released to the pool by the receiver.
+	 * @return false if the datagram was dropped, the caller keeps the buffer
+	 */
+	public boolean send(ByteBuffer buffer, ByteBufferPool pool, InetSocketAddress remote);
+
+	/**
+	 * Blocks until a datagram was received. The caller must release it.
+	 * @return null if the transport was closed or the thread interrupted
+	 */
+	public Datagram receive(int loop);
+}
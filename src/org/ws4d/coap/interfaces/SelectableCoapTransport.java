@@ -0,0 +1,45 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.interfaces;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * A transport whose receive loops can be served by a shared event loop
+ * instead of a thread each.
+ */
+public interface SelectableCoapTransport extends CoapTransport {
+
+	/**
+	 * @param loop
+	 *            index of the receive loop
+	 * @return The non-blocking channel of the loop, null if the loop can
+	 *         only be served by its own thread (receive()).
+	 */
+	public SelectableChannel getSelectableChannel(int loop);
+
+	/**
+	 * Receives a datagram without blocking.
+	 * @param loop
+	 * @param buffer
+	 * @return The source of the datagram, null if no datagram is available.
+	 * @throws IOException
+	 */
+	public InetSocketAddress receiveNow(int loop, ByteBuffer buffer) throws IOException;
+}
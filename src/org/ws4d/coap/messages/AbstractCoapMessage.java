@@ -16,10 +16,11 @@
 package org.ws4d.coap.messages;
 
 import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Random;
-import java.util.Vector;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.log4j.Logger;
 import org.ws4d.coap.connection.BasicCoapChannelManager;
@@ -33,7 +34,8 @@ import org.ws4d.coap.interfaces.CoapMessage;
 public abstract class AbstractCoapMessage implements CoapMessage {
 	/* use the logger of the channel manager */
 	private final static Logger logger = Logger.getLogger(BasicCoapChannelManager.class); 
-	protected static final int HEADER_LENGTH = 4;
+	protected static final int HEADER_LENGTH = CoapCodec.HEADER_LENGTH;
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
 	
 	/* Header */
 	protected int version;
@@ -45,12 +47,21 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	protected byte[] token = null;
 	protected int tokenLength;
     
-    /* Options */
-    protected CoapHeaderOptions options = new CoapHeaderOptions();
+    /* Options, the options of a received message are decoded on first access */
+    private final CoapHeaderOptions options = new CoapHeaderOptions();
+    private boolean optionsDecoded = true;
+    /** undecoded options of a received message, between wireOptionsOffset and wireOptionsEnd */
+    private ByteBuffer wireOptions = null;
+    private int wireOptionsOffset;
+    private int wireOptionsEnd;
+    /** true if wireOptions is a copy owned by the message */
+    private boolean wireOptionsCopied = false;
 
     /* Payload */
     protected byte[] payload = null;
     protected int payloadLength = 0;
+    /** read-only view of the received datagram (zero copy decoding), null if the payload is owned */
+    protected ByteBuffer payloadBuffer = null;
 
     /* corresponding channel */
     CoapChannel channel = null;
@@ -58,39 +69,154 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     /* Retransmission State */
     int timeout = 0;
     int retransmissionCounter = 0;
+    
+    /* Pooling, null if the message was not obtained from a CoapMessagePool */
+    CoapMessagePool pool = null;
+    /** references of a pooled message, it is recycled when the last one is released */
+    private int references = 0;
+    CoapMessagePool.LeakRecord leakRecord = null;
 
     protected void deserialize(byte[] bytes, int length, int offset){
+    	deserialize(ByteBuffer.wrap(bytes, offset, length), false);
+    }
+    
+    /**
+     * Deserializes the message from the remaining bytes of the buffer. 
+     * @param buffer contains exactly one message between position and limit
+     * @param zeroCopy if true, the payload is not copied but kept as a read-only view of the buffer
+     */
+    protected void deserialize(ByteBuffer buffer, boolean zeroCopy){
+    	int offset = buffer.position();
+    	int length = buffer.remaining();
     	/* check length to avoid buffer overflow exceptions */
+    	if (length < HEADER_LENGTH){
+    		throw new IllegalArgumentException("Invalid CoAP Message (shorter than header)");
+    	}
     	this.version = 1; 
-        this.packetType = (CoapPacketType.getPacketType((bytes[offset + 0] & 0x30) >> 4)); 
-        this.tokenLength = bytes[offset + 0] & 0x0F;
+        this.packetType = CoapPacketType.getPacketType(CoapCodec.getPacketType(buffer, offset)); 
+        this.tokenLength = CoapCodec.getTokenLength(buffer, offset);
         
-        this.messageCodeValue = (bytes[offset + 1] & 0xFF);
-        this.messageId = ((bytes[offset + 2] << 8) & 0xFF00) + (bytes[offset + 3] & 0xFF);		
+        this.messageCodeValue = CoapCodec.getCode(buffer, offset);
+        this.messageId = CoapCodec.getMessageId(buffer, offset);
 		
+        /* the token is always copied, it is kept by channels and observers */
         this.token = new byte[this.tokenLength];
         for( int i = 0; i < this.tokenLength; i++ ){
-        	this.token[i] = bytes[offset + HEADER_LENGTH + i];
+        	this.token[i] = buffer.get(offset + HEADER_LENGTH + i);
         }
     
-        /* serialize options */
-        this.options = new CoapHeaderOptions(bytes, offset + HEADER_LENGTH + tokenLength, length );
+        /* the options are only checked here, they are decoded on first access */
+        int optionsOffset = offset + HEADER_LENGTH + tokenLength;
+        int optionsEnd = scanOptions(buffer, optionsOffset, offset + length);
+        this.options.removeAll();
+        this.optionsDecoded = false;
+        this.wireOptions = buffer;
+        this.wireOptionsOffset = optionsOffset;
+        this.wireOptionsEnd = optionsEnd;
+        this.wireOptionsCopied = false;
         /* get and check payload length */
-        this.payloadLength = length - HEADER_LENGTH - options.getDeserializedLength() - tokenLength;
+        this.payloadLength = offset + length - optionsEnd;
 		if (payloadLength < 0){
 			throw new IllegalStateException("Invaldid CoAP Message (payload length negative)");
 		} else if( this.payloadLength > 0 ) {
-			/* copy payload */
 			this.payloadLength--;
-			int payloadOffset = offset + HEADER_LENGTH + options.getDeserializedLength() + tokenLength + 1;
-			payload = new byte[payloadLength];
-			for (int i = 0; i < payloadLength; i++){
-				payload[i] = bytes[i + payloadOffset];
+			int payloadOffset = optionsEnd + 1;
+			if (zeroCopy){
+				/* keep a view of the payload, it is only valid until the message is released */
+				ByteBuffer view = buffer.duplicate();
+				view.limit(payloadOffset + payloadLength);
+				view.position(payloadOffset);
+				payloadBuffer = view.slice().asReadOnlyBuffer();
+			} else {
+				/* copy payload */
+				payload = new byte[payloadLength];
+				for (int i = 0; i < payloadLength; i++){
+					payload[i] = buffer.get(i + payloadOffset);
+				}
 			}
 		}
     }
     
-    /* TODO: this function should be in another class */
+    /**
+     * Checks the options of a received message without decoding them.
+     * @return Absolute index behind the last option.
+     */
+    private static int scanOptions(ByteBuffer buffer, int offset, int end){
+    	int optionNumber = 0;
+    	while (offset < end && !CoapCodec.isPayloadMarker(buffer, offset)){
+    		optionNumber += CoapCodec.getOptionDelta(buffer, offset);
+    		/* unknown elective options are kept, unknown critical options (odd numbers) are rejected */
+    		if ((optionNumber & 1) == 1
+    				&& CoapHeaderOptionType.parse(optionNumber) == CoapHeaderOptionType.UNKNOWN){
+    			throw new IllegalArgumentException("Unknown critical header option " + optionNumber);
+    		}
+    		offset += CoapCodec.getOptionHeaderLength(buffer, offset)
+    				+ CoapCodec.getOptionValueLength(buffer, offset);
+    	}
+    	if (offset > end){
+    		throw new IllegalArgumentException("Invalid CoAP Message (option exceeds message)");
+    	}
+    	return offset;
+    }
+    
+    /**
+     * @return The options, decoded from the received datagram on first access.
+     */
+    protected CoapHeaderOptions options(){
+    	if (!optionsDecoded){
+    		options.decode(wireOptions, wireOptionsOffset, wireOptionsEnd);
+    		optionsDecoded = true;
+    		wireOptions = null;
+    	}
+    	return options;
+    }
+    
+    /**
+     * Uses options that were serialized before, see CoapRequestTemplate. The
+     * buffer is shared by all messages of a template and only read with
+     * absolute gets, the options are decoded into the own store on first access.
+     */
+    void setSerializedOptions(ByteBuffer serialized){
+    	options.removeAll();
+    	optionsDecoded = false;
+    	wireOptions = serialized;
+    	wireOptionsOffset = 0;
+    	wireOptionsEnd = serialized.limit();
+    	/* never changes, there is nothing to detach */
+    	wireOptionsCopied = true;
+    }
+    
+    /* undecoded options are copied before the received datagram is reused */
+    private void detachWireOptions(){
+    	if (optionsDecoded || wireOptionsCopied){
+    		return;
+    	}
+    	int length = wireOptionsEnd - wireOptionsOffset;
+    	if (length == 0){
+    		/* nothing to copy, the (empty) store is used */
+    		optionsDecoded = true;
+    		wireOptions = null;
+    		return;
+    	}
+    	byte[] copy = new byte[length];
+    	if (wireOptions.hasArray()){
+    		System.arraycopy(wireOptions.array(), wireOptions.arrayOffset() + wireOptionsOffset, copy, 0, length);
+    	} else {
+    		ByteBuffer view = wireOptions.duplicate();
+    		view.position(wireOptionsOffset);
+    		view.get(copy);
+    	}
+    	wireOptions = ByteBuffer.wrap(copy);
+    	wireOptionsOffset = 0;
+    	wireOptionsEnd = length;
+    	wireOptionsCopied = true;
+    }
+    
+    /**
+     * Parses a message from an array. The options are decoded from the array
+     * on first access, the array must not be reused until the message is
+     * handled or retain() was called.
+     */
     public static CoapMessage parseMessage(byte[] bytes, int length){
     	return parseMessage(bytes, length, 0);
     }
@@ -110,6 +236,26 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     		throw new IllegalArgumentException("unknown CoAP message");
     	}
     }
+    
+    /**
+     * Parses a message from the remaining bytes of a (direct) buffer without
+     * copying the payload. The payload of the returned message is a read-only
+     * view of the buffer, which is only valid until releaseWireBuffer() is
+     * called. Applications that keep the message must call retain().
+     */
+    public static CoapMessage parseMessage(ByteBuffer buffer){
+    	int messageCodeValue = (buffer.get(buffer.position() + 1) & 0xFF);
+    	
+    	if (messageCodeValue == 0){
+    		return new CoapEmptyMessage(buffer);
+    	} else if (messageCodeValue >= 0 && messageCodeValue <= 31 ){
+    		return new BasicCoapRequest(buffer);
+    	} else if (messageCodeValue >= 64 && messageCodeValue <= 191){
+    		return new BasicCoapResponse(buffer);
+    	} else {
+    		throw new IllegalArgumentException("unknown CoAP message");
+    	}
+    }
 
     public int getVersion() {
 		return version;
@@ -126,8 +272,107 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     }
 
     public byte[] getPayload() {
+    	if (payload == null && payloadLength > 0){
+    		/* copy on demand */
+    		ByteBuffer view = getPayloadBuffer();
+    		payload = new byte[payloadLength];
+    		view.get(payload);
+    		payloadBuffer = null;
+    	}
         return payload;
     }
+    
+    @Override
+    public ByteBuffer getPayloadBuffer() {
+    	if (payloadBuffer != null){
+    		return payloadBuffer.duplicate();
+    	}
+    	if (payloadLength > 0 && payload == null){
+    		throw new IllegalStateException("payload is no longer valid, the message was not retained");
+    	}
+    	if (payload == null){
+    		return null;
+    	}
+    	return ByteBuffer.wrap(payload, 0, payloadLength).asReadOnlyBuffer();
+    }
+    
+    @Override
+    public void retain() {
+    	if (pool != null){
+    		synchronized (this) {
+    			if (references <= 0){
+    				throw new IllegalStateException("message was already released");
+    			}
+    			references++;
+    		}
+    	}
+    	getPayload();
+    	detachWireOptions();
+    }
+    
+    @Override
+    public void release() {
+    	if (pool == null){
+    		return;
+    	}
+    	synchronized (this) {
+    		if (references <= 0){
+    			throw new IllegalStateException("message was already released");
+    		}
+    		if (--references > 0){
+    			return;
+    		}
+    	}
+    	pool.recycle(this);
+    }
+    
+    /* called by the pool when the message is handed out */
+    void acquired(CoapMessagePool pool){
+    	this.pool = pool;
+    	synchronized (this) {
+    		references = 1;
+    	}
+    }
+    
+    /**
+     * Resets the message before it is reused by its pool. Subclasses reset
+     * their own fields and call this method.
+     */
+    protected void recycle(){
+    	version = 0;
+    	packetType = null;
+    	messageCodeValue = 0;
+    	messageId = 0;
+    	token = null;
+    	tokenLength = 0;
+    	/* the arrays of the option store are kept */
+    	options.removeAll();
+    	optionsDecoded = true;
+    	wireOptions = null;
+    	wireOptionsCopied = false;
+    	payload = null;
+    	payloadLength = 0;
+    	payloadBuffer = null;
+    	channel = null;
+    	timeout = 0;
+    	retransmissionCounter = 0;
+    }
+    
+    /**
+     * Called by the socket handler after a message that was delivered to a
+     * channel was handled. Payload views of the receive buffer become
+     * invalid, the buffer is reused. Messages that are dropped by the socket
+     * handler (duplicates, pings, ...) are not referenced anymore and are
+     * not detached.
+     */
+    public void releaseWireBuffer() {
+    	payloadBuffer = null;
+    	if (pool == null){
+    		/* a pooled message is recycled right away unless it was retained, 
+    		 * which already copied the options */
+    		detachWireOptions();
+    	}
+    }
 
     public int getPayloadLength() {
         return payloadLength;
@@ -145,58 +390,72 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     
 
     public byte[] serialize() {
-    	/* TODO improve memory allocation */
-
-    	/* serialize header options first to get the length*/
-        int optionsLength = 0;
-        byte[] optionsArray = null;
-        if (options != null) {
-            optionsArray = this.options.serialize();
-            optionsLength = this.options.getSerializedLength();
-        }
-        
         /* allocate memory for the complete packet */
-        int length = HEADER_LENGTH + tokenLength + optionsLength + payloadLength;
+        byte[] serializedPacket = new byte[getSerializedLength()];
+        serializeTo(ByteBuffer.wrap(serializedPacket));
+        return serializedPacket;
+    }
+    
+    /**
+     * @return The length of the serialized message in bytes.
+     */
+    public int getSerializedLength() {
+        int length = HEADER_LENGTH + tokenLength + getOptionsLength();
         if( payloadLength > 0 )
-        	length++;
-        
-        byte[] serializedPacket = new byte[length];
-        
+        	length += 1 + payloadLength;
+        return length;
+    }
+    
+    private int getOptionsLength() {
+    	if (!optionsDecoded) {
+    		return wireOptionsEnd - wireOptionsOffset;
+    	}
+    	return options.getSerializedLength();
+    }
+    
+    @Override
+    public int serializeTo(ByteBuffer buffer) {
+    	int start = buffer.position();
+    	
         /* serialize header */
-        serializedPacket[0] = (byte) ((this.version & 0x03) << 6);
-        serializedPacket[0] |= (byte) ((this.packetType.getValue() & 0x03) << 4);
-        serializedPacket[0] |= (byte) (tokenLength & 0x0F);
-        serializedPacket[1] = (byte) (this.getMessageCodeValue() & 0xFF);
-        serializedPacket[2] = (byte) ((this.messageId >> 8) & 0xFF);
-        serializedPacket[3] = (byte) (this.messageId & 0xFF);
+        CoapCodec.putHeader(buffer, version, packetType.getValue(), tokenLength,
+        		getMessageCodeValue(), messageId);
         
         /* insert token into packet */
-        for (int i = 0; i < tokenLength; i++) {
-        	serializedPacket[HEADER_LENGTH + i] = token[i];
+        if (tokenLength > 0) {
+        	buffer.put(token, 0, tokenLength);
         }
         
-        /* copy serialized options to the final array */
-        int offset = HEADER_LENGTH + tokenLength;
-        for (int i = 0; i < optionsLength; i++)
-        	serializedPacket[i + offset] = optionsArray[i];
-        
-        /* insert payload marker */
-        offset = HEADER_LENGTH + tokenLength + optionsLength;
-        if( this.payloadLength > 0) {
-        	serializedPacket[offset] = (byte)0xFF;
-        	offset += 1;
+        /* options are written directly, without temporary arrays */
+        if (!optionsDecoded) {
+        	/* undecoded options of a received message or a template are copied as they are */
+        	if (wireOptions.hasArray()) {
+        		buffer.put(wireOptions.array(), wireOptions.arrayOffset() + wireOptionsOffset, wireOptionsEnd - wireOptionsOffset);
+        	} else {
+        		for (int i = wireOptionsOffset; i < wireOptionsEnd; i++) {
+        			buffer.put(wireOptions.get(i));
+        		}
+        	}
+        } else {
+        	options.serializeTo(buffer);
         }
         
-        /* copy payload to the final array */
-        for (int i = 0; i < this.payloadLength; i++) {
-        	serializedPacket[i + offset] = payload[i];
+        if( this.payloadLength > 0) {
+        	/* insert payload marker */
+        	buffer.put((byte) CoapCodec.PAYLOAD_MARKER);
+        	if (payload != null) {
+        		buffer.put(payload, 0, payloadLength);
+        	} else {
+        		/* the payload is still a view of a received datagram */
+        		buffer.put(getPayloadBuffer());
+        	}
         }
-
-        return serializedPacket;
+        return buffer.position() - start;
     }
     
     public void setPayload(byte[] payload) {
         this.payload = payload;
+        this.payloadBuffer = null;
         if (payload!=null)
             this.payloadLength = payload.length;
         else
@@ -204,6 +463,7 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     }
 
     public void setPayload(char[] payload) {
+        this.payloadBuffer = null;
         this.payload = new byte[payload.length];
         for (int i = 0; i < payload.length; i++) {
             this.payload[i] = (byte) payload[i];
@@ -218,8 +478,7 @@ public abstract class AbstractCoapMessage implements CoapMessage {
    
     @Override
     public void setContentType(CoapMediaType mediaType){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Content_Format);
-    	if (option != null){
+    	if (options().optionExists(CoapHeaderOptionType.Content_Format)){
     		/* content Type MUST only exists once */
     		throw new IllegalStateException("added content option twice");
     	}
@@ -231,18 +490,18 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     	byte[] data = long2CoapUint(mediaType.getValue());
     	/* no need to check result, mediaType is safe */
     	/* add option to Coap Header*/
-    	options.addOption(new CoapHeaderOption(CoapHeaderOptionType.Content_Format, data));
+    	options().addOption(new CoapHeaderOption(CoapHeaderOptionType.Content_Format, data));
     }
     
     @Override    
     public CoapMediaType getContentType(){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Content_Format);
-    	if (option == null){
+    	int index = options().indexOf(CoapHeaderOptionType.Content_Format);
+    	if (index < 0){
     		/* not content type TODO: return UNKNOWN ?*/
     		return null;
     	}
     	/* no need to check length, CoapMediaType parse function will do*/
-    	int mediaTypeCode = (int) coapUint2Long(options.getOption(CoapHeaderOptionType.Content_Format).getOptionData());
+    	int mediaTypeCode = (int) options().getOptionUint(index);
     	return CoapMediaType.parse(mediaTypeCode);
     }
    
@@ -265,7 +524,7 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     
     @Override
     public CoapBlockOption getBlock1(){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Block1);
+    	CoapHeaderOption option = options().getOption(CoapHeaderOptionType.Block1);
     	if (option == null){
     		return null;
     	}
@@ -276,18 +535,14 @@ public abstract class AbstractCoapMessage implements CoapMessage {
     
     @Override
     public void setBlock1(CoapBlockOption blockOption){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Block1);
-    	if (option != null){
-    		//option already exists
-    		options.removeOption(CoapHeaderOptionType.Block1);
-    	}
-    	options.addOption(CoapHeaderOptionType.Block1, blockOption.getBytes());
-    	option = options.getOption( CoapHeaderOptionType.Block1 );
+    	/* replaces an existing option */
+    	options().removeOption(CoapHeaderOptionType.Block1);
+    	options().addOption(CoapHeaderOptionType.Block1, blockOption.getBytes());
     }
     
     @Override
     public CoapBlockOption getBlock2(){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Block2);
+    	CoapHeaderOption option = options().getOption(CoapHeaderOptionType.Block2);
     	if (option == null){
     		return null;
     	}
@@ -297,36 +552,29 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 
     @Override
     public void setBlock2(CoapBlockOption blockOption){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Block2);
-    	if (option != null){
-    		//option already exists
-    		options.removeOption(CoapHeaderOptionType.Block2);
-    	}
-    	options.addOption(CoapHeaderOptionType.Block2, blockOption.getBytes());
+    	/* replaces an existing option */
+    	options().removeOption(CoapHeaderOptionType.Block2);
+    	options().addOption(CoapHeaderOptionType.Block2, blockOption.getBytes());
     }
 
 
 	@Override
 	public Integer getObserveOption() {
-		CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Observe);
-    	if (option == null){
+		int index = options().indexOf(CoapHeaderOptionType.Observe);
+    	if (index < 0){
     		return null;
     	}
-    	byte[] data = option.getOptionData();
 		
-    	if (data.length < 0 || data.length > 2){
+    	if (options().getOptionLength(index) > 2){
     		logger.warn("invalid observe option length, return null");
     		return null;
 		}
-		return (int) AbstractCoapMessage.coapUint2Long(data);
+		return (int) options().getOptionUint(index);
 	}
 
 	@Override
 	public void setObserveOption(int sequenceNumber) {
-		CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Observe);
-    	if (option != null){
-    		options.removeOption(CoapHeaderOptionType.Observe);
-    	}
+    	options().removeOption(CoapHeaderOptionType.Observe);
     	
     	byte[] data = long2CoapUint(sequenceNumber);
     	
@@ -334,16 +582,16 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 			throw new IllegalArgumentException("invalid observe option length");
 		}
     	
-    	options.addOption(CoapHeaderOptionType.Observe, data);
+    	options().addOption(CoapHeaderOptionType.Observe, data);
 	}
     
     public void copyHeaderOptions(AbstractCoapMessage origin){
-    	options.removeAll();
-    	options.copyFrom(origin.options);
+    	options().removeAll();
+    	options().copyFrom(origin.options());
     }
     
     public void removeOption(CoapHeaderOptionType optionType){
-    	options.removeOption(optionType);
+    	options().removeOption(optionType);
     }
 	
 	@Override
@@ -359,9 +607,9 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	@Override
     public int getTimeout() {
         if (timeout == 0) {
-            Random random = new Random();
+            /* no new Random per message */
             timeout = RESPONSE_TIMEOUT_MS
-                    + random.nextInt((int) (RESPONSE_TIMEOUT_MS * RESPONSE_RANDOM_FACTOR)
+                    + ThreadLocalRandom.current().nextInt((int) (RESPONSE_TIMEOUT_MS * RESPONSE_RANDOM_FACTOR)
                             - RESPONSE_TIMEOUT_MS);
         }
         return timeout;
@@ -419,55 +667,11 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	
 	
 	protected static long coapUint2Long(byte[] data){
-		/* avoid buffer overflow */
-		if(data.length > 8){
-			return -1;
-		}
-		
-		/* fill with leading zeros */
-		byte[] tmp = new byte[8];
-		for (int i = 0; i < data.length; i++) {
-			tmp[i + 8 - data.length] = data[i];
-		}
-		
-		/* convert to long */
-		ByteBuffer buf = ByteBuffer.wrap(tmp);
-		/* byte buffer contains 8 bytes */
-		return buf.getLong();
+		return CoapCodec.getUint(data);
 	}
 	
 	protected static byte[] long2CoapUint(long value){
-		/* only unsigned values supported */
-		if (value < 0){
-			return null;
-		}
-
-		/* a zero length value implies zero */
-		if (value == 0){
-			return new byte[0];
-		}
-		
-		/* convert long to byte array with a fixed length of 8 byte*/
-		ByteBuffer buf = ByteBuffer.allocate(8);
-		buf.putLong(value);
-		byte[] tmp = buf.array();
-		
-		/* remove leading zeros */
-		int leadingZeros = 0;
-		for (int i = 0; i < tmp.length; i++) {
-			if (tmp[i] == 0){
-				leadingZeros = i+1;
-			} else {
-				break;
-			}
-		}
-		/* copy to byte array without leading zeros */
-		byte[] result = new byte[8 - leadingZeros];
-		for (int i = 0; i < result.length; i++) {
-			result[i] = tmp[i + leadingZeros];
-		}
-		
-		return result;
+		return CoapCodec.toUint(value);
 	}
 	
 	public enum CoapHeaderOptionType {
@@ -537,24 +741,24 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	    byte[] optionData;
 	    int shortLength;
 	    int longLength;
-	    int deserializedLength;
 	    static final int MAX_SEGMENT_LENGTH = 255;
 	    static final int MAX_PROXI_URI_LENGTH = 1034;
 	
-	    public int getDeserializedLength() {
-			return deserializedLength;
-		}
-
 		public CoapHeaderOption(CoapHeaderOptionType optionType, byte[] value) {
+	    	this(optionType.getValue(), value);
 	    	if (optionType == CoapHeaderOptionType.UNKNOWN){
 	    		/*TODO: implement check if it is a critical option */
 	    		throw new IllegalStateException("Unknown header option");
 	    	}
+	    }
+	    
+	    /* also used for unknown elective options of received messages */
+	    CoapHeaderOption(int optionNumber, byte[] value) {
 	    	if (value == null){
 	    		throw new IllegalArgumentException("Header option value MUST NOT be null");
 	    	}
-	    	
-	        this.optionTypeValue = optionType.getValue();
+	    	this.optionTypeValue = optionNumber;
+	    	this.optionType = CoapHeaderOptionType.parse(optionNumber);
 	        this.optionData = value;
 	        if (value.length < 13) {
 	            shortLength = value.length;
@@ -567,61 +771,10 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	        	longLength = value.length - 269;
 	        }
 	    }
-	    
-	    public CoapHeaderOption(byte[] bytes, int offset, int lastOptionNumber){
-	    	int headerLength = 1;
-
-	    	/* parse option type */
-	    	optionTypeValue = ((bytes[offset] & 0xF0) >> 4);
-	    	if( optionTypeValue == 13 ) {
-	    		optionTypeValue += bytes[offset + 1] + lastOptionNumber;
-	    		headerLength++;
-	    	} else if( optionTypeValue == 14 ) {
-	    		int part1 = ((bytes[offset + 1] & 0xFF) << 8);
-	    		int part2 = bytes[offset + 2];
-	    		optionTypeValue += part1 + part2 + lastOptionNumber;
-	    		headerLength += 2;
-	    	} else {
-	    		optionTypeValue += lastOptionNumber;
-	    	}
-	    	
-	    	optionType = CoapHeaderOptionType.parse(optionTypeValue);
-	    	if (optionType == CoapHeaderOptionType.UNKNOWN){
-	    		if (optionTypeValue % 14 == 0){
-	    			/* no-op: no operation for deltas > 14 */
-	    		} else {
-	    			/*TODO: implement check if it is a critical option */
-	    			throw new IllegalArgumentException("Unknown header option");
-	    		}
-	    	}
-	    	/* parse length */
-	    	shortLength = (bytes[offset] & 0x0F);
-			if ((bytes[offset] & 0x0F) == 13) {
-				longLength = ( bytes[offset + headerLength] & 0xFF ); 
-				headerLength++;
-			} else if( shortLength == 14 ) {
-				shortLength = 269;
-				int part1 = ((bytes[offset + headerLength] & 0xFF ) << 8 );
-				int part2 = (bytes[offset + headerLength + 1] & 0xFF );
-				longLength = part1 + part2;
-				headerLength += 2;
-			} else {
-				longLength = 0;
-			}
-			
-			/* copy value */
-			optionData = new byte[shortLength + longLength];
-			for (int i = 0; i < shortLength + longLength; i++){
-				optionData[i] = bytes[i + headerLength + offset];
-			}
-			
-			deserializedLength += headerLength + shortLength + longLength;
-	    }
 	
 	    @Override
 	    public int compareTo(CoapHeaderOption option) {
 	    	/* compare function for sorting 
-	    	 * TODO: check what happens in case of equal option values 
 	    	 * IMPORTANT: order must be the same for e.g., URI path*/
 	        if (this.optionTypeValue != option.optionTypeValue)
 	            return this.optionTypeValue < option.optionTypeValue ? -1 : 1;
@@ -651,29 +804,22 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 	        return optionData;
 	    }
 	    
-	    public int getSerializeLength(){
-	    	int serializedLength = optionData.length;
-	    	if ( hasLongLength() ){
-	    		// If shortLength is 14, two extra length bytes follow the initial byte
-	    		if( shortLength == 14 )
-	    			serializedLength += 3;
-	    		// If shortLength is 13, only one extra length byte follows the initial byte
-	    		else
-	    			serializedLength += 2;
-	    	} else {
-	    		// If shortLength < 13, only the initial byte, containing 4 bit optionDelta and 4 bit option value length is added
-	    		serializedLength++;
-	    	}
-	    	
-	    	if( optionTypeValue > 13 ){
-	    		serializedLength++;
-	    	}
-	    	
-	    	if( optionTypeValue > 268 ){
-	    		serializedLength++;
-	    	}
-	    	
-	    	return serializedLength;
+	    /**
+	     * @param lastOptionNumber number of the preceding option, the option number is encoded as delta
+	     * @return length of the serialized option
+	     */
+	    public int getSerializeLength(int lastOptionNumber){
+	    	return CoapCodec.getOptionLength(optionTypeValue - lastOptionNumber, optionData.length);
+	    }
+	    
+	    /**
+	     * Writes the option to the buffer.
+	     * @param buffer
+	     * @param lastOptionNumber number of the preceding option, the option number is encoded as delta
+	     */
+	    public void serializeTo(ByteBuffer buffer, int lastOptionNumber){
+	    	CoapCodec.putOptionHeader(buffer, optionTypeValue - lastOptionNumber, optionData.length);
+	    	buffer.put(optionData);
 	    }
 	
 	    @Override
@@ -691,193 +837,339 @@ public abstract class AbstractCoapMessage implements CoapMessage {
 		}
 		
 		public byte[] serializeOption(int lastOptionNumber) {
-			
-			byte[] data = new byte[this.getSerializeLength()];
-			int arrayIndex = 0;
-			
-			int optionDelta = this.getOptionTypeValue() - lastOptionNumber;
-			if( optionDelta > 12 && optionDelta < 269 ) {
-				data[arrayIndex++] = (byte) ((( 13 & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-				data[arrayIndex++] = (byte) (( (optionDelta-13) & 0x0F ));
-			} else if( optionDelta >= 269 ){
-				data[arrayIndex++] = (byte) ((( 14 & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-				data[arrayIndex++] = (byte) (( (optionDelta-269) & 0xFFFF >> 8 ));
-				data[arrayIndex++] = (byte) (( (optionDelta-269) & 0xFF ));
-			} else {
-				data[arrayIndex++] = (byte) ((( optionDelta & 0x0F) << 4) | (this.getShortLength() & 0x0F));
-			}
-			
-            if ( this.hasLongLength() ) {
-            	if( this.getShortLength() == 13 )
-            		data[arrayIndex++] = (byte) (this.getLongLength() & 0xFF);
-            	else if( this.getShortLength() == 14 ) {
-            		data[arrayIndex++] = (byte) ((this.getLongLength() & 0xFF00) >> 8 );
-            		data[arrayIndex++] = (byte) (this.getLongLength() & 0x00FF );
-            	}
-            }
-            
-            byte[] value = this.getOptionData();
-	        for (int i = 0; i < value.length; i++) {
-	        	data[arrayIndex++] = value[i];
-	        }
-	        
-	        return data;
-			
+			byte[] data = new byte[this.getSerializeLength(lastOptionNumber)];
+			serializeTo(ByteBuffer.wrap(data), lastOptionNumber);
+			return data;
 		}
 	}
 
+	/**
+	 * The options of a message, sorted by option number. Options with equal
+	 * numbers keep the order in which they were added (e.g. the segments of
+	 * the Uri-Path). The values are kept in one byte array, each option is an
+	 * entry of the parallel number, offset and length arrays. A bitmap tells
+	 * which of the registered option numbers (all below 64) are present.
+	 */
 	protected class CoapHeaderOptions implements Iterable<CoapHeaderOption>{
 
-		private Vector<CoapHeaderOption> headerOptions = new Vector<CoapHeaderOption>();
-		private int deserializedLength;
-		private int serializedLength = 0;
+		private static final int INITIAL_OPTIONS = 4;
+		private static final int INITIAL_DATA = 32;
 		
-		/*public CoapHeaderOptions(byte[] bytes, int option_count){
-			this(bytes, option_count, option_count);
-		}*/
+		private int[] numbers = null;
+		private int[] offsets = null;
+		private int[] lengths = null;
+		private int count = 0;
+		/** values of all options, values of removed options remain until the array is compacted */
+		private byte[] data = null;
+		private int dataLength = 0;
+		/** bit n is set if an option with number n < 64 is present */
+		private long present = 0;
 		
-		public CoapHeaderOptions(byte[] bytes, int offset, int length ){
-			/* note: we only receive deltas and never concrete numbers */
-			/* TODO: check integrity */
-			deserializedLength = 0;
-			int lastOptionNumber = 0;
-			int optionOffset = offset;
-			int j = 0;
-			//System.out.println("Byte Length = " + bytes.length);
-			//for (int i = 0; i < optionCount; i++) {
-			while( bytes[optionOffset] != -1 && optionOffset < length - 1) {
-				CoapHeaderOption option = new CoapHeaderOption(bytes, optionOffset, lastOptionNumber);
-				lastOptionNumber = option.getOptionTypeValue();
-				this.deserializedLength += option.getDeserializedLength();
-				optionOffset += option.getDeserializedLength();
-				addOption(option);
-			}
+		public CoapHeaderOptions(byte[] bytes, int offset, int end ){
+			this(ByteBuffer.wrap(bytes), offset, end);
+		}
+		
+		public CoapHeaderOptions(ByteBuffer bytes, int offset, int end ){
+			decode(bytes, offset, end);
 		}
 		
 		public CoapHeaderOptions() {
 			/* creates empty header options */
 		}
 		
-	    public CoapHeaderOption getOption(int optionNumber) {
-			for (CoapHeaderOption headerOption : headerOptions) {
-				if (headerOption.getOptionTypeValue() == optionNumber) {
-					return headerOption;
-				}
+		/**
+		 * Replaces the options with options that were checked by
+		 * scanOptions(). The values are copied with a single array copy, the
+		 * arrays of the store are reused if they are large enough.
+		 * @param bytes
+		 * @param offset absolute index of the first option
+		 * @param end absolute index behind the last option
+		 */
+		void decode(ByteBuffer bytes, int offset, int end){
+			/* note: we only receive deltas and never concrete numbers */
+			removeAll();
+			int length = end - offset;
+			if (data == null || data.length < length){
+				data = new byte[Math.max(length, INITIAL_DATA)];
+			}
+			for (int i = 0; i < length; i++){
+				data[i] = bytes.get(offset + i);
+			}
+			dataLength = length;
+			ByteBuffer wire = ByteBuffer.wrap(data, 0, length);
+			int lastOptionNumber = 0;
+			int optionOffset = 0;
+			while (optionOffset < dataLength && !CoapCodec.isPayloadMarker(wire, optionOffset)){
+				int number = lastOptionNumber + CoapCodec.getOptionDelta(wire, optionOffset);
+				int valueLength = CoapCodec.getOptionValueLength(wire, optionOffset);
+				int valueOffset = optionOffset + CoapCodec.getOptionHeaderLength(wire, optionOffset);
+				/* the options of a message are already sorted */
+				ensureCapacity(count + 1);
+				numbers[count] = number;
+				offsets[count] = valueOffset;
+				lengths[count] = valueLength;
+				count++;
+				setPresent(number);
+				lastOptionNumber = number;
+				optionOffset = valueOffset + valueLength;
 			}
-			return null;
+		}
+		
+		public CoapHeaderOption getOption(int optionNumber) {
+			int index = indexOf(optionNumber);
+			return index < 0 ? null : toOption(index);
 		}
 	    
-	    public CoapHeaderOption getOption(CoapHeaderOptionType optionType) {
-			for (CoapHeaderOption headerOption : headerOptions) {
-				if (headerOption.getOptionTypeValue() == optionType.getValue() ) {
-					return headerOption;
-				}
-			}
-			return null;
+		public CoapHeaderOption getOption(CoapHeaderOptionType optionType) {
+			return getOption(optionType.getValue());
 		}
 	    
-	    public boolean optionExists(CoapHeaderOptionType optionType) {
-			CoapHeaderOption option = getOption(optionType);
-			if (option == null){
-				return false;
-			} else return true;
+		public boolean optionExists(CoapHeaderOptionType optionType) {
+			return contains(optionType.getValue());
 		}
-
+		
+		public boolean contains(int optionNumber) {
+			if (optionNumber < 64){
+				return (present & (1L << optionNumber)) != 0;
+			}
+			return indexOf(optionNumber) >= 0;
+		}
+		
+		/**
+		 * @return Index of the first option with this number, -1 if there
+		 *         is no such option.
+		 */
+		public int indexOf(CoapHeaderOptionType optionType) {
+			int number = optionType.getValue();
+			if (number < 64 && (present & (1L << number)) == 0){
+				return -1;
+			}
+			return indexOf(number);
+		}
+		
+		/* index based access, 0 <= index < getOptionCount() */
+		
+		public int getOptionNumber(int index) {
+			return numbers[index];
+		}
+		
+		public int getOptionLength(int index) {
+			return lengths[index];
+		}
+		
+		/**
+		 * @return The value as unsigned integer, -1 if it is longer than 8 bytes.
+		 */
+		public long getOptionUint(int index) {
+			return CoapCodec.getUint(data, offsets[index], lengths[index]);
+		}
+		
+		/**
+		 * @return A copy of the value.
+		 */
+		public byte[] getOptionData(int index) {
+			byte[] value = new byte[lengths[index]];
+			System.arraycopy(data, offsets[index], value, 0, value.length);
+			return value;
+		}
+		
+		public String getOptionString(int index) {
+			return new String(data, offsets[index], lengths[index], UTF8);
+		}
+		
 		public void addOption(CoapHeaderOption option) {
-	        headerOptions.add(option);
-	        /*TODO: only sort when options are serialized*/
-	        Collections.sort(headerOptions);
-	    }
-
-	    public void addOption(CoapHeaderOptionType optionType, byte[] value){
-	    	addOption(new CoapHeaderOption(optionType, value));
-	    }
-	    
-	    public void removeOption(CoapHeaderOptionType optionType){
-			CoapHeaderOption headerOption;
-			// get elements of Vector
-			
-			/* note: iterating over and changing a vector at the same time is not allowed */
-			int i = 0;
-			while (i < headerOptions.size()){
-				headerOption = headerOptions.get(i);
-				if (headerOption.getOptionTypeValue() == optionType.getValue() ) {
-					headerOptions.remove(i);
-				} else {
-					/* only increase when no element was removed*/
-					i++;
+			addOption(option.getOptionTypeValue(), option.getOptionData());
+		}
+		
+		public void addOption(CoapHeaderOptionType optionType, byte[] value){
+			if (optionType == CoapHeaderOptionType.UNKNOWN){
+				/*TODO: implement check if it is a critical option */
+				throw new IllegalStateException("Unknown header option");
+			}
+			if (value == null){
+				throw new IllegalArgumentException("Header option value MUST NOT be null");
+			}
+			addOption(optionType.getValue(), value);
+		}
+		
+		private void addOption(int number, byte[] value) {
+			ensureCapacity(count + 1);
+			/* behind all options with a lower or equal number, usually the end */
+			int index = count;
+			while (index > 0 && numbers[index - 1] > number){
+				index--;
+			}
+			int moved = count - index;
+			if (moved > 0){
+				System.arraycopy(numbers, index, numbers, index + 1, moved);
+				System.arraycopy(offsets, index, offsets, index + 1, moved);
+				System.arraycopy(lengths, index, lengths, index + 1, moved);
+			}
+			numbers[index] = number;
+			offsets[index] = appendData(value);
+			lengths[index] = value.length;
+			count++;
+			setPresent(number);
+		}
+		
+		public void removeOption(CoapHeaderOptionType optionType){
+			int number = optionType.getValue();
+			int kept = 0;
+			for (int i = 0; i < count; i++){
+				if (numbers[i] != number){
+					numbers[kept] = numbers[i];
+					offsets[kept] = offsets[i];
+					lengths[kept] = lengths[i];
+					kept++;
 				}
 			}
-			Collections.sort(headerOptions);
-	    }
-	    
-	    public void removeAll(){
-	    	headerOptions.clear();
-	    }
-	    
-	    public void copyFrom(CoapHeaderOptions origin){
-	    	for (CoapHeaderOption option : origin) {
-				addOption(option);
+			count = kept;
+			if (number >= 0 && number < 64){
+				present &= ~(1L << number);
 			}
-	    }
-
-	    public int getOptionCount() {
-	        return headerOptions.size();
-	    }
-
-	    public byte[] serialize() {
-	    	/* options are serialized here to be more efficient (only one byte array necessary)*/
-	        int length = 0;
-
-	        /* calculate the overall length first */
-	        for (CoapHeaderOption option : headerOptions) {
-	            length += option.getSerializeLength();
-	        }
-
-	        byte[] data = new byte[length];
-	        byte[] opt = null;
-	        int arrayIndex = 0;
-
-	        int lastOptionNumber = 0; /* let's keep track of this */
-	        int j = 0;
-	        for (CoapHeaderOption headerOption : headerOptions) {
-	        	/* TODO: move the serialization implementation to CoapHeaderOption  ==> I think its done*/
-
-	        	opt = headerOption.serializeOption(lastOptionNumber);
-	        	for( int i = 0; i < opt.length; i++ ) {
-	        		data[arrayIndex++] = opt[i];
-	        	}
-	        	lastOptionNumber = headerOption.getOptionTypeValue();
-	        }
-	        serializedLength = length;
-	        return data;
-	    }
-
-	    public int getDeserializedLength(){
-	    	return deserializedLength;
-	    }
+		}
+		
+		public void removeAll(){
+			count = 0;
+			dataLength = 0;
+			present = 0;
+		}
+		
+		public void copyFrom(CoapHeaderOptions origin){
+			for (int i = 0; i < origin.count; i++){
+				addOption(origin.numbers[i], origin.getOptionData(i));
+			}
+		}
+		
+		public int getOptionCount() {
+			return count;
+		}
+		
+		public byte[] serialize() {
+			byte[] data = new byte[getSerializedLength()];
+			serializeTo(ByteBuffer.wrap(data));
+			return data;
+		}
+		
+		/**
+		 * Writes all options in the order of their option numbers.
+		 * @return number of bytes written
+		 */
+		public int serializeTo(ByteBuffer buffer) {
+			int start = buffer.position();
+			int lastOptionNumber = 0;
+			for (int i = 0; i < count; i++) {
+				CoapCodec.putOptionHeader(buffer, numbers[i] - lastOptionNumber, lengths[i]);
+				buffer.put(data, offsets[i], lengths[i]);
+				lastOptionNumber = numbers[i];
+			}
+			return buffer.position() - start;
+		}
 		
 		public int getSerializedLength() {
-			return serializedLength;
+			int length = 0;
+			int lastOptionNumber = 0;
+			for (int i = 0; i < count; i++) {
+				length += CoapCodec.getOptionLength(numbers[i] - lastOptionNumber, lengths[i]);
+				lastOptionNumber = numbers[i];
+			}
+			return length;
 		}
 		
-	    @Override
-	    public Iterator<CoapHeaderOption> iterator() {
-	        return headerOptions.iterator();
-	    }
-
+		@Override
+		public Iterator<CoapHeaderOption> iterator() {
+			return new Iterator<CoapHeaderOption>() {
+				private int index = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return index < count;
+				}
+				
+				@Override
+				public CoapHeaderOption next() {
+					if (index >= count){
+						throw new NoSuchElementException();
+					}
+					return toOption(index++);
+				}
+				
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		private int indexOf(int optionNumber) {
+			for (int i = 0; i < count && numbers[i] <= optionNumber; i++) {
+				if (numbers[i] == optionNumber) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		
+		private CoapHeaderOption toOption(int index) {
+			return new CoapHeaderOption(numbers[index], getOptionData(index));
+		}
+		
+		private void setPresent(int number) {
+			if (number < 64){
+				present |= 1L << number;
+			}
+		}
+		
+		private void ensureCapacity(int capacity) {
+			if (numbers == null){
+				int size = Math.max(capacity, INITIAL_OPTIONS);
+				numbers = new int[size];
+				offsets = new int[size];
+				lengths = new int[size];
+			} else if (capacity > numbers.length){
+				int size = Math.max(capacity, numbers.length * 2);
+				numbers = Arrays.copyOf(numbers, size);
+				offsets = Arrays.copyOf(offsets, size);
+				lengths = Arrays.copyOf(lengths, size);
+			}
+		}
+		
+		/* @return offset of the value in data */
+		private int appendData(byte[] value) {
+			if (data == null){
+				data = new byte[Math.max(value.length, INITIAL_DATA)];
+			} else if (dataLength + value.length > data.length){
+				compactData(value.length);
+			}
+			System.arraycopy(value, 0, data, dataLength, value.length);
+			dataLength += value.length;
+			return dataLength - value.length;
+		}
+		
+		/* drops the values of removed options, grows the array if that does not make room */
+		private void compactData(int required) {
+			int live = 0;
+			for (int i = 0; i < count; i++) {
+				live += lengths[i];
+			}
+			byte[] compacted = new byte[Math.max(data.length, (live + required) * 2)];
+			int length = 0;
+			for (int i = 0; i < count; i++) {
+				System.arraycopy(data, offsets[i], compacted, length, lengths[i]);
+				offsets[i] = length;
+				length += lengths[i];
+			}
+			data = compacted;
+			dataLength = length;
+		}
 
 		@Override
 		public String toString() {
 			String result = "\tOptions:\n";
-			for (CoapHeaderOption option : headerOptions) {
+			for (CoapHeaderOption option : this) {
 				result += "\t\t" + option.toString() + "\n";
 			}
 			return result;
 		}
 	}
-
-	
-	
-	
 }
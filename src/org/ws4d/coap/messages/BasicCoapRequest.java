@@ -15,7 +15,7 @@
 
 package org.ws4d.coap.messages;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Vector;
 
 import org.ws4d.coap.interfaces.CoapRequest;
@@ -33,13 +33,25 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 
 	public BasicCoapRequest(byte[] bytes, int length, int offset) {
 		deserialize(bytes, length, offset);
-		/* check if request code is valid, this function throws an error in case of an invalid argument */
-		requestCode = CoapRequestCode.parseRequestCode(this.messageCodeValue);
-		
 		//TODO: check integrity of header options 
 	}
 
+	/**
+	 * Zero copy decoding, see AbstractCoapMessage.parseMessage(ByteBuffer).
+	 */
+	public BasicCoapRequest(ByteBuffer buffer) {
+		deserialize(buffer, true);
+	}
+
 	public BasicCoapRequest(CoapPacketType packetType, CoapRequestCode requestCode, int messageId) {
+		init(packetType, requestCode, messageId);
+	}
+	
+	/* used by CoapMessagePool */
+	BasicCoapRequest() {
+	}
+	
+	void init(CoapPacketType packetType, CoapRequestCode requestCode, int messageId) {
 		this.version = 1;
 
 		this.packetType = packetType;
@@ -48,6 +60,19 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		this.messageId = messageId;
 	}
 	
+	@Override
+	protected void deserialize(ByteBuffer buffer, boolean zeroCopy) {
+		super.deserialize(buffer, zeroCopy);
+		/* check if request code is valid, this function throws an error in case of an invalid argument */
+		requestCode = CoapRequestCode.parseRequestCode(this.messageCodeValue);
+	}
+	
+	@Override
+	protected void recycle() {
+		super.recycle();
+		requestCode = null;
+	}
+	
     @Override
     public void setToken(byte[] token){
     	/* this function is only public for a request*/
@@ -62,27 +87,27 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 	@Override
 	public void setUriHost(String host) {
 		if (host == null) return;
-		if (options.optionExists(CoapHeaderOptionType.Uri_Host)){
+		if (options().optionExists(CoapHeaderOptionType.Uri_Host)){
 			throw new IllegalArgumentException("Uri-Host option already exists");
 		}
 		if (host.length() < 1 || host.length() > CoapHeaderOption.MAX_SEGMENT_LENGTH){
 			throw new IllegalArgumentException("Invalid Uri-Host option length");
 		}
 		/*TODO: check if host is a valid address */
-		options.addOption(CoapHeaderOptionType.Uri_Host, host.getBytes());
+		options().addOption(CoapHeaderOptionType.Uri_Host, host.getBytes());
 	}
 
 	@Override
 	public void setUriPort(int port) {
 		if (port < 0) return;
-		if (options.optionExists(CoapHeaderOptionType.Uri_Port)){
+		if (options().optionExists(CoapHeaderOptionType.Uri_Port)){
 			throw new IllegalArgumentException("Uri-Port option already exists");
 		}
 		byte[] value = long2CoapUint(port);
     	if(value.length < 0 || value.length > 2){
     		throw new IllegalStateException("Illegal Uri-Port length");
     	}
-		options.addOption(new CoapHeaderOption(CoapHeaderOptionType.Uri_Port, value));
+		options().addOption(new CoapHeaderOption(CoapHeaderOptionType.Uri_Port, value));
 	}
 
 	@Override
@@ -90,7 +115,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		if (path == null) return;
 		
 		/* delete old options if present */
-		options.removeOption(CoapHeaderOptionType.Uri_Path);
+		options().removeOption(CoapHeaderOptionType.Uri_Path);
 		
 		/*create substrings */
 		String[] pathElements = path.split("/");
@@ -101,7 +126,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 				throw new IllegalArgumentException("Invalid Uri-Path length!");
 			} else if (element.length() > 0){
 				/* ignore empty substrings */
-				options.addOption(CoapHeaderOptionType.Uri_Path, element.getBytes());
+				options().addOption(CoapHeaderOptionType.Uri_Path, element.getBytes());
 			}
 		}
 	}
@@ -111,7 +136,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 		if (query == null) return;
 				
 		/* delete old options if present */
-		options.removeOption(CoapHeaderOptionType.Uri_Query);
+		options().removeOption(CoapHeaderOptionType.Uri_Query);
 		
 		/*create substrings */
 		String[] pathElements = query.split("&"); 
@@ -122,7 +147,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 				throw new IllegalArgumentException("Invalid Uri-Query");
 			} else if (element.length() > 0){
 				/* ignore empty substrings */
-				options.addOption(CoapHeaderOptionType.Uri_Query, element.getBytes());
+				options().addOption(CoapHeaderOptionType.Uri_Query, element.getBytes());
 			}
 		}
 		
@@ -132,7 +157,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 	public void setProxyUri(String proxyUri) {
 		if (proxyUri == null) return;
 
-		if (options.optionExists(CoapHeaderOptionType.Proxy_Uri)){
+		if (options().optionExists(CoapHeaderOptionType.Proxy_Uri)){
 			throw new IllegalArgumentException("Proxy Uri already exists");
 		}
 		
@@ -144,16 +169,16 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 			throw new IllegalArgumentException("Proxy Uri longer then 1034 bytes are not supported!");
 		}
 		
-		options.addOption(CoapHeaderOptionType.Proxy_Uri, proxyUri.getBytes());
+		options().addOption(CoapHeaderOptionType.Proxy_Uri, proxyUri.getBytes());
 	}
 	
     @Override
     public Vector<String> getUriQuery(){
     	Vector<String> queryList = new Vector<String>();
-
-    	for (CoapHeaderOption option : options) {
-			if(option.getOptionType() == CoapHeaderOptionType.Uri_Query){
-				queryList.add(new String(option.getOptionData()));
+    	CoapHeaderOptions options = options();
+    	for (int i = 0; i < options.getOptionCount(); i++) {
+			if(options.getOptionNumber(i) == CoapHeaderOptionType.Uri_Query.getValue()){
+				queryList.add(new String(options.getOptionData(i)));
 			}
 		}
     	return queryList;
@@ -161,42 +186,36 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
     
     @Override
     public String getUriHost(){
-    	return new String(options.getOption(CoapHeaderOptionType.Uri_Host).getOptionData());
+    	return new String(options().getOption(CoapHeaderOptionType.Uri_Host).getOptionData());
     }
     
     @Override
     public int getUriPort(){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Uri_Port);
-    	if (option == null){
+    	int index = options().indexOf(CoapHeaderOptionType.Uri_Port);
+    	if (index < 0){
     		return -1; //TODO: return default Coap Port?
     	}
-    	byte[] value = option.getOptionData(); 
    	
-    	if(value.length < 0 || value.length > 2){
+    	if(options().getOptionLength(index) > 2){
     		/* should never happen because this is an internal variable and should be checked during serialization */
     		throw new IllegalStateException("Illegal Uri-Port Option length");
     	}
     	/* checked length -> cast is safe*/
-      	return (int)coapUint2Long(options.getOption(CoapHeaderOptionType.Uri_Port).getOptionData());
+      	return (int) options().getOptionUint(index);
     }
     
     @Override
 	public String getUriPath() {
-    	if (options.getOption(CoapHeaderOptionType.Uri_Path) == null){
+    	CoapHeaderOptions options = options();
+    	if (!options.optionExists(CoapHeaderOptionType.Uri_Path)){
     		return null;
     	}
     	
 		StringBuilder uriPathBuilder = new StringBuilder();
-		for (CoapHeaderOption option : options) {
-			if (option.getOptionType() == CoapHeaderOptionType.Uri_Path) {
-				String uriPathElement;
-				try {
-					uriPathElement = new String(option.getOptionData(), "UTF-8");
-					uriPathBuilder.append("/");
-					uriPathBuilder.append(uriPathElement);
-				} catch (UnsupportedEncodingException e) {
-					throw new IllegalArgumentException("Invalid Encoding");
-				}
+		for (int i = 0; i < options.getOptionCount(); i++) {
+			if (options.getOptionNumber(i) == CoapHeaderOptionType.Uri_Path.getValue()) {
+				uriPathBuilder.append("/");
+				uriPathBuilder.append(options.getOptionString(i));
 			}
 		}
 		return uriPathBuilder.toString();
@@ -204,17 +223,18 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
     
     @Override
     public void addAccept(CoapMediaType mediaType){
-    	options.addOption(CoapHeaderOptionType.Accept, long2CoapUint(mediaType.getValue()));
+    	options().addOption(CoapHeaderOptionType.Accept, long2CoapUint(mediaType.getValue()));
     }
     @Override
     public Vector<CoapMediaType> getAccept(CoapMediaType mediaType){
-    	if (options.getOption(CoapHeaderOptionType.Accept) == null){
+    	CoapHeaderOptions options = options();
+    	if (!options.optionExists(CoapHeaderOptionType.Accept)){
     		return null;
     	}
     	Vector<CoapMediaType> acceptList = new Vector<CoapMediaType>();
-		for (CoapHeaderOption option : options) {
-			if (option.getOptionType() == CoapHeaderOptionType.Accept) {
-				CoapMediaType accept = CoapMediaType.parse((int)coapUint2Long(option.optionData));
+		for (int i = 0; i < options.getOptionCount(); i++) {
+			if (options.getOptionNumber(i) == CoapHeaderOptionType.Accept.getValue()) {
+				CoapMediaType accept = CoapMediaType.parse((int) options.getOptionUint(i));
 //				if (accept != CoapMediaType.UNKNOWN){
 				/* add also UNKNOWN types to list */	
 				acceptList.add(accept);
@@ -226,7 +246,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 	
 	@Override
 	public String getProxyUri(){
-		CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Proxy_Uri);
+		CoapHeaderOption option = options().getOption(CoapHeaderOptionType.Proxy_Uri);
 		if (option == null)
 			return null;
 		return new String(option.getOptionData());
@@ -240,58 +260,51 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
     	if (etag.length < 1 || etag.length > 8){
     		throw new IllegalArgumentException("Invalid etag length");
     	}
-    	options.addOption(CoapHeaderOptionType.Etag, etag);
+    	options().addOption(CoapHeaderOptionType.Etag, etag);
 	}
 
 	@Override
 	public Vector<byte[]> getETag() {
-		if (options.getOption(CoapHeaderOptionType.Etag) == null){
-			return null;
-		}
-		
-    	Vector<byte[]> etagList = new Vector<byte[]>();
-		for (CoapHeaderOption option : options) {
-			if (option.getOptionType() == CoapHeaderOptionType.Etag) {
-				byte[] data = option.getOptionData();
-				if (data.length >= 1 && data.length <= 8){
-					etagList.add(option.getOptionData());
-				}
-			}
-		}
-		return etagList;
+		return getOptionValues(CoapHeaderOptionType.Etag);
 	}
 	
 	public void setIfNoneMatchOption( boolean value ) {
 		if( value ) {
-			options.addOption( CoapHeaderOptionType.If_None_Match, null );
+			options().addOption( CoapHeaderOptionType.If_None_Match, null );
 		} else {
-			options.removeOption( CoapHeaderOptionType.If_None_Match );
+			options().removeOption( CoapHeaderOptionType.If_None_Match );
 		}
 	}
 	
 	public boolean getIfNoneMatchOption() {
-		return options.optionExists( CoapHeaderOptionType.If_None_Match );
+		return options().optionExists( CoapHeaderOptionType.If_None_Match );
 	}
 	
 	public Vector<byte[]> getIfMatchOption() {
-		if (options.getOption(CoapHeaderOptionType.If_Match) == null){
+		return getOptionValues(CoapHeaderOptionType.If_Match);
+	}
+	
+	/* values of an ETag or If-Match option with a valid length, null if there is none */
+	private Vector<byte[]> getOptionValues(CoapHeaderOptionType optionType) {
+		CoapHeaderOptions options = options();
+		if (!options.optionExists(optionType)){
 			return null;
 		}
 		
-		Vector<byte[]> ifMatchList = new Vector<byte[]>();
-		for (CoapHeaderOption option : options) {
-			if (option.getOptionType() == CoapHeaderOptionType.If_Match) {
-				byte[] data = option.getOptionData();
-				if (data.length >= 1 && data.length <= 8){
-					ifMatchList.add(option.getOptionData());
+		Vector<byte[]> values = new Vector<byte[]>();
+		for (int i = 0; i < options.getOptionCount(); i++) {
+			if (options.getOptionNumber(i) == optionType.getValue()) {
+				int length = options.getOptionLength(i);
+				if (length >= 1 && length <= 8){
+					values.add(options.getOptionData(i));
 				}
 			}
 		}
-		return ifMatchList;
+		return values;
 	}
 	
 	public void addIfMatchOption( byte[] etag ){
-		options.addOption( CoapHeaderOptionType.If_Match, etag);
+		options().addOption( CoapHeaderOptionType.If_Match, etag);
 	}
 
 	
@@ -312,7 +325,7 @@ public class BasicCoapRequest extends AbstractCoapMessage implements CoapRequest
 	
     @Override
 	public String toString() {
-    	return packetType.toString() + ", " + requestCode.toString() + ", MsgId: " + getMessageID() +", #Options: " + options.getOptionCount(); 
+    	return packetType.toString() + ", " + requestCode.toString() + ", MsgId: " + getMessageID() +", #Options: " + options().getOptionCount(); 
 	}
 
     @Override
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.messages;
 
+import java.nio.ByteBuffer;
+
 import org.ws4d.coap.interfaces.CoapResponse;
 
 /**
@@ -29,14 +31,39 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
 	
 	public BasicCoapResponse(byte[] bytes, int length, int offset){
 		deserialize(bytes, length, offset);
-		/* check if response code is valid, this function throws an error in case of an invalid argument */
-		responseCode = CoapResponseCode.parseResponseCode(this.messageCodeValue);
-		
 		//TODO: check integrity of header options
 	}
 
+	/**
+	 * Zero copy decoding, see AbstractCoapMessage.parseMessage(ByteBuffer).
+	 */
+	public BasicCoapResponse(ByteBuffer buffer){
+		deserialize(buffer, true);
+	}
+
 	/* token can be null */
 	public BasicCoapResponse(CoapPacketType packetType, CoapResponseCode responseCode, int messageId, byte[] requestToken){
+		init(packetType, responseCode, messageId, requestToken);
+	}
+	
+	/* used by CoapMessagePool */
+	BasicCoapResponse(){
+	}
+	
+	@Override
+	protected void deserialize(ByteBuffer buffer, boolean zeroCopy){
+		super.deserialize(buffer, zeroCopy);
+		/* check if response code is valid, this function throws an error in case of an invalid argument */
+		responseCode = CoapResponseCode.parseResponseCode(this.messageCodeValue);
+	}
+	
+	@Override
+	protected void recycle(){
+		super.recycle();
+		responseCode = null;
+	}
+	
+	void init(CoapPacketType packetType, CoapResponseCode responseCode, int messageId, byte[] requestToken){
 		this.version = 1;
 		
 		this.packetType = packetType;
@@ -66,22 +93,22 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
 
 	@Override
 	public void setMaxAge(int maxAge){
-		if (options.optionExists(CoapHeaderOptionType.Max_Age)){
+		if (options().optionExists(CoapHeaderOptionType.Max_Age)){
 			throw new IllegalStateException("Max Age option already exists");
 		}
 		if (maxAge < 0){
 			throw new IllegalStateException("Max Age MUST be an unsigned value");
 		}
-		options.addOption(CoapHeaderOptionType.Max_Age, long2CoapUint(maxAge));
+		options().addOption(CoapHeaderOptionType.Max_Age, long2CoapUint(maxAge));
 	}
 	
     @Override
     public long getMaxAge(){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Max_Age);
-    	if (option == null){
+    	int index = options().indexOf(CoapHeaderOptionType.Max_Age);
+    	if (index < 0){
     		return -1;
     	}
-      	return coapUint2Long((options.getOption(CoapHeaderOptionType.Max_Age).getOptionData()));
+      	return options().getOptionUint(index);
     }
 	
     @Override
@@ -92,12 +119,12 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
     	if (etag.length < 1 || etag.length > 8){
     		throw new IllegalArgumentException("Invalid etag length");
     	}
-    	options.addOption(CoapHeaderOptionType.Etag, etag);
+    	options().addOption(CoapHeaderOptionType.Etag, etag);
     }
     
     @Override
     public byte[] getETag(){
-    	CoapHeaderOption option = options.getOption(CoapHeaderOptionType.Etag);
+    	CoapHeaderOption option = options().getOption(CoapHeaderOptionType.Etag);
     	if (option == null){
     		return null;
     	}
@@ -121,7 +148,7 @@ public class BasicCoapResponse extends AbstractCoapMessage implements CoapRespon
 	
     @Override
 	public String toString() {
-    	return packetType.toString() + ", " + responseCode.toString() + ", MsgId: " + getMessageID() +", #Options: " + options.getOptionCount(); 
+    	return packetType.toString() + ", " + responseCode.toString() + ", MsgId: " + getMessageID() +", #Options: " + options().getOptionCount(); 
 	}
 
     @Override
@@ -0,0 +1,241 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.messages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of CoAP messages, see rfc7252 - 3. "Message Format". Messages
+ * are encoded in one forward pass into the buffer of the caller (header,
+ * token, options, payload) and decoded from absolute positions of the
+ * received buffer. None of the methods allocates, except toUint().
+ */
+public final class CoapCodec {
+
+	public static final int HEADER_LENGTH = 4;
+	public static final int PAYLOAD_MARKER = 0xFF;
+	public static final int MAX_TOKEN_LENGTH = 8;
+
+	/* option delta and length: 4 bit nibble, values above use 1 or 2 extended bytes */
+	private static final int EXTENDED_1 = 13;
+	private static final int EXTENDED_2 = 269;
+	private static final int RESERVED = 15;
+
+	private CoapCodec() {
+	}
+
+	/* --- header --- */
+
+	public static void putHeader(ByteBuffer buffer, int version, int packetType, int tokenLength,
+			int code, int messageId) {
+		buffer.put((byte) (((version & 0x03) << 6) | ((packetType & 0x03) << 4) | (tokenLength & 0x0F)));
+		buffer.put((byte) (code & 0xFF));
+		buffer.put((byte) ((messageId >> 8) & 0xFF));
+		buffer.put((byte) (messageId & 0xFF));
+	}
+
+	public static int getPacketType(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset) & 0x30) >> 4;
+	}
+
+	public static int getTokenLength(ByteBuffer buffer, int offset) {
+		int tokenLength = buffer.get(offset) & 0x0F;
+		if (tokenLength > MAX_TOKEN_LENGTH) {
+			throw new IllegalArgumentException("Invalid CoAP Message (token length " + tokenLength + ")");
+		}
+		return tokenLength;
+	}
+
+	public static int getCode(ByteBuffer buffer, int offset) {
+		return buffer.get(offset + 1) & 0xFF;
+	}
+
+	public static int getMessageId(ByteBuffer buffer, int offset) {
+		return ((buffer.get(offset + 2) & 0xFF) << 8) | (buffer.get(offset + 3) & 0xFF);
+	}
+
+	/* --- options --- */
+
+	/**
+	 * @param delta
+	 *            option number minus the number of the preceding option
+	 * @param valueLength
+	 * @return Length of the encoded option, including its value.
+	 */
+	public static int getOptionLength(int delta, int valueLength) {
+		return 1 + extendedLength(delta) + extendedLength(valueLength) + valueLength;
+	}
+
+	/**
+	 * Writes the option header, the value has to follow.
+	 */
+	public static void putOptionHeader(ByteBuffer buffer, int delta, int valueLength) {
+		buffer.put((byte) ((nibble(delta) << 4) | nibble(valueLength)));
+		putExtended(buffer, delta);
+		putExtended(buffer, valueLength);
+	}
+
+	/**
+	 * @return true if the byte at offset ends the options.
+	 */
+	public static boolean isPayloadMarker(ByteBuffer buffer, int offset) {
+		return (buffer.get(offset) & 0xFF) == PAYLOAD_MARKER;
+	}
+
+	/**
+	 * @param offset
+	 *            absolute index of the first byte of the option
+	 * @return The option delta.
+	 */
+	public static int getOptionDelta(ByteBuffer buffer, int offset) {
+		return getExtended(buffer, offset + 1, (buffer.get(offset) & 0xF0) >> 4);
+	}
+
+	/**
+	 * @return The length of the option value.
+	 */
+	public static int getOptionValueLength(ByteBuffer buffer, int offset) {
+		int deltaNibble = (buffer.get(offset) & 0xF0) >> 4;
+		return getExtended(buffer, offset + 1 + extendedNibbleLength(deltaNibble), buffer.get(offset) & 0x0F);
+	}
+
+	/**
+	 * @return The number of bytes before the option value.
+	 */
+	public static int getOptionHeaderLength(ByteBuffer buffer, int offset) {
+		int first = buffer.get(offset);
+		return 1 + extendedNibbleLength((first & 0xF0) >> 4) + extendedNibbleLength(first & 0x0F);
+	}
+
+	/* 4 bit value of the option delta or length field */
+	private static int nibble(int value) {
+		if (value < EXTENDED_1) {
+			return value;
+		} else if (value < EXTENDED_2) {
+			return 13;
+		}
+		return 14;
+	}
+
+	/* number of extended bytes that follow the delta or length field */
+	private static int extendedLength(int value) {
+		if (value < EXTENDED_1) {
+			return 0;
+		} else if (value < EXTENDED_2) {
+			return 1;
+		}
+		return 2;
+	}
+
+	private static int extendedNibbleLength(int nibble) {
+		if (nibble == RESERVED) {
+			throw new IllegalArgumentException("Invalid CoAP Message (reserved option nibble)");
+		}
+		return nibble < 13 ? 0 : nibble - 12;
+	}
+
+	private static void putExtended(ByteBuffer buffer, int value) {
+		if (value >= EXTENDED_2) {
+			buffer.put((byte) (((value - EXTENDED_2) >> 8) & 0xFF));
+			buffer.put((byte) ((value - EXTENDED_2) & 0xFF));
+		} else if (value >= EXTENDED_1) {
+			buffer.put((byte) ((value - EXTENDED_1) & 0xFF));
+		}
+	}
+
+	private static int getExtended(ByteBuffer buffer, int offset, int nibble) {
+		switch (nibble) {
+		case 13:
+			return EXTENDED_1 + (buffer.get(offset) & 0xFF);
+		case 14:
+			return EXTENDED_2 + (((buffer.get(offset) & 0xFF) << 8) | (buffer.get(offset + 1) & 0xFF));
+		case RESERVED:
+			throw new IllegalArgumentException("Invalid CoAP Message (reserved option nibble)");
+		default:
+			return nibble;
+		}
+	}
+
+	/* --- unsigned integer option values, without leading zero bytes --- */
+
+	/**
+	 * @return Number of bytes of the value, 0 for 0.
+	 */
+	public static int getUintLength(long value) {
+		int length = 0;
+		while (value != 0) {
+			length++;
+			value >>>= 8;
+		}
+		return length;
+	}
+
+	public static void putUint(ByteBuffer buffer, long value) {
+		for (int shift = (getUintLength(value) - 1) * 8; shift >= 0; shift -= 8) {
+			buffer.put((byte) (value >>> shift));
+		}
+	}
+
+	/**
+	 * @return The value, -1 if it is longer than 8 bytes.
+	 */
+	public static long getUint(ByteBuffer buffer, int offset, int length) {
+		if (length > 8) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (buffer.get(offset + i) & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The value, -1 if it is longer than 8 bytes.
+	 */
+	public static long getUint(byte[] data) {
+		return getUint(data, 0, data.length);
+	}
+
+	/**
+	 * @return The value, -1 if it is longer than 8 bytes.
+	 */
+	public static long getUint(byte[] data, int offset, int length) {
+		if (length > 8) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+
+	/**
+	 * @return The value as option data, null for negative values.
+	 */
+	public static byte[] toUint(long value) {
+		if (value < 0) {
+			return null;
+		}
+		byte[] data = new byte[getUintLength(value)];
+		for (int i = data.length - 1; i >= 0; i--) {
+			data[i] = (byte) value;
+			value >>>= 8;
+		}
+		return data;
+	}
+}
@@ -15,6 +15,8 @@
 
 package org.ws4d.coap.messages;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
  */
@@ -26,6 +28,31 @@ public class CoapEmptyMessage extends AbstractCoapMessage {
 
 	public CoapEmptyMessage(byte[] bytes, int length, int offset) {
 		deserialize(bytes, length, offset);
+	}
+
+	public CoapEmptyMessage(ByteBuffer buffer) {
+		deserialize(buffer, true);
+	}
+
+	public CoapEmptyMessage(CoapPacketType packetType, int messageId) {
+		init(packetType, messageId);
+	}
+	
+	/* used by CoapMessagePool */
+	CoapEmptyMessage() {
+	}
+	
+	void init(CoapPacketType packetType, int messageId) {
+		this.version = 1;
+		this.packetType = packetType;
+		this.messageCodeValue = 0;
+		this.messageId = messageId;
+	}
+	
+	@Override
+	protected void deserialize(ByteBuffer buffer, boolean zeroCopy) {
+		int length = buffer.remaining();
+		super.deserialize(buffer, zeroCopy);
 		/*
 		 * check if response code is valid, this function throws an error in
 		 * case of an invalid argument
@@ -40,13 +67,6 @@ public class CoapEmptyMessage extends AbstractCoapMessage {
 		}
 	}
 
-	public CoapEmptyMessage(CoapPacketType packetType, int messageId) {
-		this.version = 1;
-		this.packetType = packetType;
-		this.messageCodeValue = 0;
-		this.messageId = messageId;
-	}
-
 	@Override
 	public boolean isRequest() {
 		return false;
@@ -0,0 +1,256 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.messages;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.ws4d.coap.interfaces.CoapMessage;
+
+/**
+ * A bounded pool of message objects. A pooled message starts with one
+ * reference, which is given back by {@link CoapMessage#release()}; holders
+ * that keep the message call {@link CoapMessage#retain()} and release it
+ * later. When the last reference is released the message is reset and
+ * reused, together with the arrays of its option store. Like the
+ * ByteBufferPool the messages are kept in array based stacks: if a stack is
+ * empty a new message is allocated, if it is full a recycled message is left
+ * to the garbage collector. A message that is never released is simply
+ * garbage collected as well.
+ *
+ * With leak detection enabled (for debugging) the pool remembers where each
+ * message was handed out and logs a warning with that trace for every pooled
+ * message that was garbage collected without being released.
+ */
+public class CoapMessagePool {
+	private final static Logger logger = Logger.getLogger(CoapMessagePool.class);
+
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final Stack<BasicCoapRequest> requests;
+	private final Stack<BasicCoapResponse> responses;
+	private final Stack<CoapEmptyMessage> emptyMessages;
+
+	private volatile boolean leakDetection = false;
+	private final ReferenceQueue<AbstractCoapMessage> leakQueue = new ReferenceQueue<AbstractCoapMessage>();
+	/** records of the messages that are handed out, a record must be reachable to be enqueued */
+	private final Set<LeakRecord> leakRecords = Collections.newSetFromMap(new ConcurrentHashMap<LeakRecord, Boolean>());
+	private final AtomicInteger leaks = new AtomicInteger(0);
+
+	/**
+	 * Where a message was handed out, enqueued when the message is garbage
+	 * collected without being released.
+	 */
+	static final class LeakRecord extends WeakReference<AbstractCoapMessage> {
+		final Throwable trace;
+
+		LeakRecord(AbstractCoapMessage msg, ReferenceQueue<AbstractCoapMessage> queue) {
+			super(msg, queue);
+			this.trace = new Throwable("pooled " + msg.getClass().getSimpleName() + " was acquired here");
+		}
+	}
+
+	private static final class Stack<T> {
+		private final Object[] items;
+		private int count = 0;
+
+		Stack(int capacity) {
+			items = new Object[capacity];
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized T pop() {
+			if (count == 0) {
+				return null;
+			}
+			T item = (T) items[--count];
+			items[count] = null;
+			return item;
+		}
+
+		synchronized void push(T item) {
+			if (count < items.length) {
+				items[count++] = item;
+			}
+		}
+	}
+
+	public CoapMessagePool() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of idle messages of each kind (request,
+	 *            response, empty)
+	 */
+	public CoapMessagePool(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		requests = new Stack<BasicCoapRequest>(capacity);
+		responses = new Stack<BasicCoapResponse>(capacity);
+		emptyMessages = new Stack<CoapEmptyMessage>(capacity);
+	}
+
+	/**
+	 * Parses a message from the remaining bytes of the buffer into a pooled
+	 * message, see AbstractCoapMessage.parseMessage(ByteBuffer).
+	 * @param zeroCopy
+	 *            keep the payload as a view of the buffer instead of copying it
+	 * @throws IllegalArgumentException
+	 *             if the message is invalid
+	 */
+	public CoapMessage parse(ByteBuffer buffer, boolean zeroCopy) {
+		int messageCodeValue = (buffer.get(buffer.position() + 1) & 0xFF);
+		AbstractCoapMessage msg;
+		if (messageCodeValue == 0) {
+			msg = acquireEmptyMessage();
+		} else if (messageCodeValue >= 0 && messageCodeValue <= 31) {
+			msg = acquireRequest();
+		} else if (messageCodeValue >= 64 && messageCodeValue <= 191) {
+			msg = acquireResponse();
+		} else {
+			throw new IllegalArgumentException("unknown CoAP message");
+		}
+		try {
+			msg.deserialize(buffer, zeroCopy);
+		} catch (RuntimeException e) {
+			msg.release();
+			throw e;
+		}
+		return msg;
+	}
+
+	public BasicCoapRequest createRequest(CoapPacketType packetType, CoapRequestCode requestCode, int messageId) {
+		BasicCoapRequest request = acquireRequest();
+		request.init(packetType, requestCode, messageId);
+		return request;
+	}
+
+	/* token can be null */
+	public BasicCoapResponse createResponse(CoapPacketType packetType, CoapResponseCode responseCode, int messageId,
+			byte[] requestToken) {
+		BasicCoapResponse response = acquireResponse();
+		try {
+			response.init(packetType, responseCode, messageId, requestToken);
+		} catch (RuntimeException e) {
+			response.release();
+			throw e;
+		}
+		return response;
+	}
+
+	public CoapEmptyMessage createEmptyMessage(CoapPacketType packetType, int messageId) {
+		CoapEmptyMessage msg = acquireEmptyMessage();
+		msg.init(packetType, messageId);
+		return msg;
+	}
+
+	/**
+	 * Enables leak detection. Each acquire records a stack trace, so this is
+	 * meant for debugging only.
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+
+	public boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	/**
+	 * @return Number of pooled messages that were found to be garbage
+	 *         collected without being released (leak detection only).
+	 */
+	public int getLeakCount() {
+		reportLeaks();
+		return leaks.get();
+	}
+
+	private BasicCoapRequest acquireRequest() {
+		BasicCoapRequest request = requests.pop();
+		if (request == null) {
+			request = new BasicCoapRequest();
+		}
+		acquired(request);
+		return request;
+	}
+
+	private BasicCoapResponse acquireResponse() {
+		BasicCoapResponse response = responses.pop();
+		if (response == null) {
+			response = new BasicCoapResponse();
+		}
+		acquired(response);
+		return response;
+	}
+
+	private CoapEmptyMessage acquireEmptyMessage() {
+		CoapEmptyMessage msg = emptyMessages.pop();
+		if (msg == null) {
+			msg = new CoapEmptyMessage();
+		}
+		acquired(msg);
+		return msg;
+	}
+
+	private void acquired(AbstractCoapMessage msg) {
+		msg.acquired(this);
+		if (leakDetection) {
+			reportLeaks();
+			LeakRecord record = new LeakRecord(msg, leakQueue);
+			leakRecords.add(record);
+			msg.leakRecord = record;
+		}
+	}
+
+	/* called by AbstractCoapMessage.release() when the last reference is released */
+	void recycle(AbstractCoapMessage msg) {
+		LeakRecord record = msg.leakRecord;
+		if (record != null) {
+			msg.leakRecord = null;
+			leakRecords.remove(record);
+			/* a cleared reference is not enqueued */
+			record.clear();
+		}
+		msg.recycle();
+		if (msg instanceof BasicCoapRequest) {
+			requests.push((BasicCoapRequest) msg);
+		} else if (msg instanceof BasicCoapResponse) {
+			responses.push((BasicCoapResponse) msg);
+		} else if (msg instanceof CoapEmptyMessage) {
+			emptyMessages.push((CoapEmptyMessage) msg);
+		}
+	}
+
+	private void reportLeaks() {
+		LeakRecord record = (LeakRecord) leakQueue.poll();
+		while (record != null) {
+			if (leakRecords.remove(record)) {
+				leaks.incrementAndGet();
+				logger.warn("pooled message was garbage collected without being released", record.trace);
+			}
+			record = (LeakRecord) leakQueue.poll();
+		}
+	}
+}
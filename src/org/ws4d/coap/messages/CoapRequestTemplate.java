@@ -0,0 +1,82 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.messages;
+
+import java.nio.ByteBuffer;
+
+import org.ws4d.coap.interfaces.CoapRequest;
+
+/**
+ * A request that is sent again and again, e.g. by a poller. The options of
+ * the prototype (Uri-Path, Uri-Query, Accept, ...) are built and serialized
+ * once. Requests created from the template share the serialized options and
+ * the payload, sending one only writes the header with the new message ID,
+ * the token and a copy of the shared bytes into the send buffer. The options
+ * of such a request are decoded on first access only, e.g. if the
+ * application changes them.
+ *
+ * A template is immutable and can be used by any number of threads.
+ */
+public class CoapRequestTemplate {
+
+	private final CoapPacketType packetType;
+	private final CoapRequestCode requestCode;
+	/** serialized options, only read with absolute gets */
+	private final ByteBuffer options;
+	private final byte[] payload;
+
+	/**
+	 * @param prototype
+	 *            request with the options and payload of all requests of the
+	 *            template, its message ID and token are ignored
+	 */
+	public CoapRequestTemplate(CoapRequest prototype) {
+		if (!(prototype instanceof AbstractCoapMessage)) {
+			throw new IllegalArgumentException("unsupported request");
+		}
+		AbstractCoapMessage msg = (AbstractCoapMessage) prototype;
+		this.packetType = prototype.getPacketType();
+		this.requestCode = prototype.getRequestCode();
+		AbstractCoapMessage.CoapHeaderOptions prototypeOptions = msg.options();
+		byte[] serialized = new byte[prototypeOptions.getSerializedLength()];
+		prototypeOptions.serializeTo(ByteBuffer.wrap(serialized));
+		this.options = ByteBuffer.wrap(serialized);
+		byte[] prototypePayload = prototype.getPayload();
+		this.payload = prototypePayload == null ? null : prototypePayload.clone();
+	}
+
+	/**
+	 * @return A request with the options and payload of the template. The
+	 *         payload array is shared and must not be modified.
+	 */
+	public BasicCoapRequest createRequest(int messageId, byte[] token) {
+		BasicCoapRequest request = new BasicCoapRequest(packetType, requestCode, messageId);
+		request.setToken(token);
+		request.setSerializedOptions(options);
+		if (payload != null) {
+			request.setPayload(payload);
+		}
+		return request;
+	}
+
+	public CoapPacketType getPacketType() {
+		return packetType;
+	}
+
+	public CoapRequestCode getRequestCode() {
+		return requestCode;
+	}
+}
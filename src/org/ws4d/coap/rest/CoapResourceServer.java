@@ -31,14 +31,19 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.SimpleLayout;
 import org.ws4d.coap.Constants;
 import org.ws4d.coap.connection.BasicCoapChannelManager;
+import org.ws4d.coap.connection.BasicCoapSocketHandler;
 import org.ws4d.coap.interfaces.CoapChannelManager;
+import org.ws4d.coap.interfaces.CoapMessage;
 import org.ws4d.coap.interfaces.CoapRequest;
 import org.ws4d.coap.interfaces.CoapResponse;
 import org.ws4d.coap.interfaces.CoapServer;
 import org.ws4d.coap.interfaces.CoapServerChannel;
+import org.ws4d.coap.interfaces.CoapSocketHandler;
+import org.ws4d.coap.interfaces.CoapTransport;
 import org.ws4d.coap.messages.CoapMediaType;
 import org.ws4d.coap.messages.CoapRequestCode;
 import org.ws4d.coap.messages.CoapResponseCode;
+import org.ws4d.coap.tools.AdmissionController;
 
 /**
  * @author Christian Lerche <christian.lerche@uni-rostock.de>
@@ -53,12 +58,47 @@ public class CoapResourceServer implements CoapServer, ResourceServer {
     protected HashMap<String, byte[]> etags = new HashMap<String, byte[]>();
     
     private CoreResource coreResource = new CoreResource(this);
+    
+    /** limits of the admission control enabled by setAdmissionControlEnabled() */
+    public static final int ADMISSION_MAX_PENDING = 1024;
+    public static final int ADMISSION_MAX_QUEUE_DELAY_MS = 500;
+    public static final int ADMISSION_RETRY_AFTER_S = 2;
+    
+    /** sheds requests under overload, null (default): all requests are handled */
+    private AdmissionController admissionController = null;
 
     public CoapResourceServer(){
     	logger.addAppender(new ConsoleAppender(new SimpleLayout()));
     	logger.setLevel(Level.WARN);
     }
     
+    /**
+     * Sets the admission control of incoming requests, must be called
+     * before start(). null (default): no admission control by the server.
+     * @param admissionController
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+    	this.admissionController = admissionController;
+    }
+    
+    /**
+     * Enables the admission control with the default limits, must be called
+     * before start(). Under overload requests are rejected with 5.03 and a
+     * Max-Age of ADMISSION_RETRY_AFTER_S seconds.
+     */
+    public void setAdmissionControlEnabled(boolean enabled) {
+    	if (!enabled) {
+    		admissionController = null;
+    	} else if (admissionController == null) {
+    		admissionController = new AdmissionController(ADMISSION_MAX_PENDING,
+    				ADMISSION_MAX_QUEUE_DELAY_MS, CoapMessage.RESPONSE_TIMEOUT_MS, ADMISSION_RETRY_AFTER_S);
+    	}
+    }
+    
+    public AdmissionController getAdmissionController() {
+    	return admissionController;
+    }
+    
     public HashMap<String, Resource> getResources(){
     	return resources;
     }
@@ -136,11 +176,43 @@ public class CoapResourceServer implements CoapServer, ResourceServer {
 	}
 	
 	public void start(int port) throws Exception {
+		start(port, 1);
+	}
+	
+	/**
+	 * Starts the server with more than one receive loop for the port.
+	 * @param port
+	 * @param receiveLoops number of receive loops, e.g. the number of cores
+	 * @throws Exception
+	 */
+	public void start(int port, int receiveLoops) throws Exception {
 		resources.put(coreResource.getPath(), coreResource);
 		CoapChannelManager channelManager = BasicCoapChannelManager
 				.getInstance();
 		this.port = port;
-		channelManager.createServerListener(this, port);
+		channelManager.createServerListener(this, port, receiveLoops);
+		applyAdmissionControl(channelManager.getSocketHandler(port));
+	}
+	
+	/**
+	 * Starts the server on top of the given transport, e.g. an in-memory
+	 * loopback transport.
+	 * @param transport
+	 */
+	public void start(CoapTransport transport) throws Exception {
+		resources.put(coreResource.getPath(), coreResource);
+		CoapChannelManager channelManager = BasicCoapChannelManager
+				.getInstance();
+		this.port = transport.getLocalPort();
+		channelManager.createServerListener(this, transport);
+		applyAdmissionControl(channelManager.getSocketHandler(port));
+	}
+	
+	/* without admission control the limits of the socket handler are kept */
+	private void applyAdmissionControl(CoapSocketHandler socketHandler) {
+		if (admissionController != null && socketHandler instanceof BasicCoapSocketHandler) {
+			((BasicCoapSocketHandler) socketHandler).setAdmissionController(admissionController);
+		}
 	}
 
     @Override
@@ -0,0 +1,146 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a received request is handled or shed. A request is
+ * rejected if too many requests are pending (queued or being handled) or if
+ * the smoothed queueing delay exceeds a limit. A request that waited longer
+ * than the ACK timeout of the client is dropped, the client has already
+ * retransmitted it.
+ *
+ * Usage: admit() when the request is received. If it was admitted, start()
+ * when it is taken from the queue, and finish() once it was handled if
+ * start() returned true.
+ */
+public class AdmissionController {
+
+	/** weight of a new sample of the queueing delay, 1/8 */
+	private static final int DELAY_SHIFT = 3;
+
+	private final int maxPending;
+	private final long maxQueueDelayMs;
+	private final long expiryMs;
+	private final int retryAfterSeconds;
+
+	private final AtomicInteger pending = new AtomicInteger(0);
+	/** smoothed queueing delay in milliseconds << DELAY_SHIFT */
+	private final AtomicLong scaledDelay = new AtomicLong(0);
+
+	private final AtomicLong admitted = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	/**
+	 * @param maxPending
+	 *            maximum number of queued and running requests
+	 * @param maxQueueDelayMs
+	 *            maximum smoothed time between reception and handling
+	 * @param expiryMs
+	 *            requests that waited longer are dropped, usually the ACK
+	 *            timeout
+	 * @param retryAfterSeconds
+	 *            Max-Age of the 5.03 response sent to rejected requests
+	 */
+	public AdmissionController(int maxPending, long maxQueueDelayMs, long expiryMs, int retryAfterSeconds) {
+		if (maxPending < 1 || maxQueueDelayMs < 1 || expiryMs < 1 || retryAfterSeconds < 0) {
+			throw new IllegalArgumentException("invalid admission control parameters");
+		}
+		this.maxPending = maxPending;
+		this.maxQueueDelayMs = maxQueueDelayMs;
+		this.expiryMs = expiryMs;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * @return true if the request is admitted and counted as pending, false
+	 *         if it should be rejected with 5.03.
+	 */
+	public boolean admit() {
+		/* the delay is only updated by started requests, an empty queue resets the decision */
+		if (pending.get() > 0 && (scaledDelay.get() >> DELAY_SHIFT) > maxQueueDelayMs) {
+			rejected.incrementAndGet();
+			return false;
+		}
+		if (pending.incrementAndGet() > maxPending) {
+			pending.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		admitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Called when an admitted request is taken from the queue.
+	 * @param receiveTime
+	 * @param now
+	 * @return false if the request expired, it must be dropped and is no
+	 *         longer pending
+	 */
+	public boolean start(long receiveTime, long now) {
+		long delay = Math.max(now - receiveTime, 0);
+		/* the delay of dropped requests counts as well, it shows the overload */
+		long old;
+		do {
+			old = scaledDelay.get();
+		} while (!scaledDelay.compareAndSet(old, old + delay - (old >> DELAY_SHIFT)));
+
+		if (delay > expiryMs) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Called when a started request was handled.
+	 */
+	public void finish() {
+		pending.decrementAndGet();
+	}
+
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * @return The smoothed queueing delay in milliseconds.
+	 */
+	public long getQueueDelay() {
+		return scaledDelay.get() >> DELAY_SHIFT;
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,69 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded pool of direct buffers of equal size. Buffers are kept in an
+ * array based stack, so acquire() and release() do not allocate once the pool
+ * is warmed up. If the pool is empty a new buffer is allocated, if it is full
+ * a released buffer is left to the garbage collector.
+ */
+public class ByteBufferPool {
+
+	private final ByteBuffer[] buffers;
+	private final int bufferSize;
+	private int count = 0;
+
+	public ByteBufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ByteBuffer[capacity];
+	}
+
+	/**
+	 * @return A cleared direct buffer, which must be given back using release().
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = null;
+		synchronized (this) {
+			if (count > 0) {
+				buffer = buffers[--count];
+				buffers[count] = null;
+			}
+		}
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+			return;
+		}
+		synchronized (this) {
+			if (count < buffers.length) {
+				buffers[count++] = buffer;
+			}
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,189 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.net.InetAddress;
+
+/**
+ * Fixed size table of recently seen (peer, message ID) pairs, used for
+ * duplicate detection. Keys and their generation are stored in two primitive
+ * arrays, so the table does not create any objects after construction and
+ * its memory is bounded by the capacity (12 bytes per entry).
+ *
+ * Time is divided into generations of lifetime / GENERATIONS milliseconds.
+ * An entry expires once it is older than the lifetime, expired slots are
+ * reused by later inserts. If all slots of a probe window are in use, the
+ * oldest entry of the window is evicted. All methods are thread safe.
+ */
+public class DedupeTable {
+
+	/** number of generations per lifetime */
+	private static final int GENERATIONS = 16;
+	/** maximum number of slots probed per operation */
+	private static final int MAX_PROBE = 8;
+
+	private final long[] keys;
+	/** generation of the entry, 0 marks a free slot */
+	private final int[] generations;
+	private final int mask;
+	private final long generationMs;
+	private final long startTime;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param capacity
+	 *            number of entries, rounded up to the next power of two
+	 * @param lifetimeMs
+	 *            time an entry is remembered
+	 */
+	public DedupeTable(int capacity, long lifetimeMs) {
+		if (capacity < 1 || lifetimeMs < 1) {
+			throw new IllegalArgumentException("invalid dedupe table parameters");
+		}
+		int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBE) - 1) << 1;
+		this.keys = new long[size];
+		this.generations = new int[size];
+		this.mask = size - 1;
+		this.generationMs = Math.max(lifetimeMs / GENERATIONS, 1);
+		this.startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return The key of a message ID of a remote endpoint.
+	 */
+	public static long messageKey(InetAddress address, int port, int msgId) {
+		return (EndpointMap.endpointKey(address, port) << 16) ^ (msgId & 0xFFFF);
+	}
+
+	/**
+	 * Records the key and counts a miss, unless the key is already known.
+	 * @return true if the key was recorded before and did not expire (a duplicate)
+	 */
+	public synchronized boolean checkAndRecord(long key, long now) {
+		if (indexOf(key, generation(now)) >= 0) {
+			hits++;
+			return true;
+		}
+		misses++;
+		insert(key, generation(now));
+		return false;
+	}
+
+	/**
+	 * Counts a hit or a miss, but does not record the key.
+	 * @return true if the key is known and did not expire
+	 */
+	public synchronized boolean contains(long key, long now) {
+		if (indexOf(key, generation(now)) >= 0) {
+			hits++;
+			return true;
+		}
+		misses++;
+		return false;
+	}
+
+	/**
+	 * Records the key, an existing entry is refreshed.
+	 */
+	public synchronized void record(long key, long now) {
+		int gen = generation(now);
+		int index = indexOf(key, gen);
+		if (index >= 0) {
+			generations[index] = gen;
+		} else {
+			insert(key, gen);
+		}
+	}
+
+	/**
+	 * Forgets the key, e.g. if the message was dropped before it was handled
+	 * and a retransmission must not be detected as a duplicate.
+	 */
+	public synchronized void remove(long key, long now) {
+		int index = indexOf(key, generation(now));
+		if (index >= 0) {
+			generations[index] = 0;
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return Number of entries that were dropped before they expired.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+
+	private int generation(long now) {
+		/* generations start at 1, 0 marks a free slot */
+		return (int) ((now - startTime) / generationMs) + 1;
+	}
+
+	private boolean isLive(int index, int gen) {
+		int g = generations[index];
+		return g != 0 && gen - g <= GENERATIONS;
+	}
+
+	private int indexOf(long key, int gen) {
+		int index = spread(key) & mask;
+		for (int n = 0; n < MAX_PROBE; n++, index = (index + 1) & mask) {
+			if (keys[index] == key && isLive(index, gen)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long key, int gen) {
+		int index = spread(key) & mask;
+		int oldest = index;
+		for (int n = 0; n < MAX_PROBE; n++, index = (index + 1) & mask) {
+			if (!isLive(index, gen)) {
+				keys[index] = key;
+				generations[index] = gen;
+				return;
+			}
+			if (generations[index] < generations[oldest]) {
+				oldest = index;
+			}
+		}
+		/* window is full: drop the oldest entry */
+		evictions++;
+		keys[oldest] = key;
+		generations[oldest] = gen;
+	}
+
+	private static int spread(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+}
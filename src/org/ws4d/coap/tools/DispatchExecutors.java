@@ -0,0 +1,90 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for the dispatch of received messages to the application.
+ */
+public class DispatchExecutors {
+
+	/** queued tasks per thread of the default bounded pool */
+	public static final int QUEUE_PER_THREAD = 256;
+
+	private static ExecutorService shared = null;
+
+	private DispatchExecutors() {
+	}
+
+	/**
+	 * @return An executor that starts a virtual thread per task, null if the
+	 *         JVM does not support virtual threads.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			/* JDK 21+, looked up by reflection to stay compatible with older JVMs */
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * A pool of daemon threads with a bounded queue. If the queue is full the
+	 * submitting thread runs the task itself, which slows down the receive
+	 * loop instead of dropping messages.
+	 * @param threads
+	 * @param queueCapacity
+	 */
+	public static ExecutorService newBoundedExecutor(int threads, int queueCapacity) {
+		final AtomicInteger count = new AtomicInteger(0);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "CoAP dispatch " + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * @return An executor that can be shared by all socket handlers: virtual threads if
+	 *         available, otherwise a bounded pool with two threads per core.
+	 */
+	public static synchronized ExecutorService getShared() {
+		if (shared == null) {
+			shared = newVirtualThreadExecutor();
+			if (shared == null) {
+				int threads = 2 * Runtime.getRuntime().availableProcessors();
+				shared = newBoundedExecutor(threads, threads * QUEUE_PER_THREAD);
+			}
+		}
+		return shared;
+	}
+}
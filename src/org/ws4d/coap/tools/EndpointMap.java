@@ -0,0 +1,305 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent open addressing map from a remote endpoint (address and port) to
+ * a value. An IPv4 endpoint is packed into a long (address << 16 | port), an
+ * IPv6 endpoint is hashed from its address bytes and compared by address.
+ *
+ * Lookups are lock-free and do not allocate: slots hold immutable entries in
+ * an AtomicReferenceArray and a rebuilt table is published through a
+ * volatile field. Writers are serialized by the monitor of the map. A
+ * removed entry leaves a tombstone, which is reused by the next insert and
+ * dropped when the table is rebuilt.
+ */
+public class EndpointMap<V> {
+
+	private static final class Entry {
+		final long key;
+		final InetAddress address;
+		/** raw address, only kept for IPv6 */
+		final byte[] raw;
+		final int port;
+		final Object value;
+
+		Entry(long key, InetAddress address, int port, Object value) {
+			this.key = key;
+			this.address = address;
+			this.raw = (address == null || address instanceof Inet4Address) ? null : address.getAddress();
+			this.port = port;
+			this.value = value;
+		}
+	}
+
+	private static final Entry TOMBSTONE = new Entry(0, null, -1, null);
+	private static final int INITIAL_CAPACITY = 16;
+
+	private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+	/** live entries, guarded by this */
+	private int size = 0;
+	/** live entries and tombstones, guarded by this */
+	private int used = 0;
+
+	/**
+	 * @return The packed key of an endpoint. Unique for IPv4 addresses, a hash
+	 *         for all other addresses.
+	 */
+	public static long endpointKey(InetAddress address, int port) {
+		if (address instanceof Inet4Address) {
+			/* the hash code of an Inet4Address is its address */
+			return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+		}
+		return endpointKey(address.getAddress(), port);
+	}
+
+	/**
+	 * @return The packed key of an endpoint given by its raw address.
+	 */
+	public static long endpointKey(byte[] address, int port) {
+		if (address.length == 4) {
+			long addr = ((address[0] & 0xFFL) << 24) | ((address[1] & 0xFFL) << 16)
+					| ((address[2] & 0xFFL) << 8) | (address[3] & 0xFFL);
+			return (addr << 16) | (port & 0xFFFF);
+		}
+		long hash = 1125899906842597L;
+		for (int i = 0; i < address.length; i++) {
+			hash = 31 * hash + address[i];
+		}
+		return (hash << 16) ^ (hash >>> 48) ^ (port & 0xFFFF);
+	}
+
+	public V get(InetAddress address, int port) {
+		if (address == null) {
+			return null;
+		}
+		return get(endpointKey(address, port), address, port);
+	}
+
+	/**
+	 * Lookup by raw address bytes, avoids creating an InetAddress.
+	 */
+	public V get(byte[] address, int port) {
+		long key = endpointKey(address, port);
+		AtomicReferenceArray<Entry> tab = table;
+		int mask = tab.length() - 1;
+		for (int i = spread(key) & mask, n = 0; n < tab.length(); i = (i + 1) & mask, n++) {
+			Entry e = tab.get(i);
+			if (e == null) {
+				return null;
+			}
+			if (e != TOMBSTONE && e.key == key && e.port == port && sameAddress(e, address)) {
+				return value(e);
+			}
+		}
+		return null;
+	}
+
+	public boolean containsKey(InetAddress address, int port) {
+		return get(address, port) != null;
+	}
+
+	/**
+	 * @return The previous value of the endpoint or null.
+	 */
+	public synchronized V put(InetAddress address, int port, V value) {
+		return insert(address, port, value, false);
+	}
+
+	/**
+	 * @return The current value of the endpoint, null if the value was added.
+	 */
+	public synchronized V putIfAbsent(InetAddress address, int port, V value) {
+		return insert(address, port, value, true);
+	}
+
+	public synchronized V remove(InetAddress address, int port) {
+		if (address == null) {
+			return null;
+		}
+		int index = find(endpointKey(address, port), address, port);
+		if (index < 0) {
+			return null;
+		}
+		AtomicReferenceArray<Entry> tab = table;
+		V old = value(tab.get(index));
+		tab.set(index, TOMBSTONE);
+		size--;
+		return old;
+	}
+
+	/**
+	 * Removes the endpoint only if it is mapped to the given value.
+	 * @return true if the entry was removed
+	 */
+	public synchronized boolean remove(InetAddress address, int port, V value) {
+		if (address == null) {
+			return false;
+		}
+		int index = find(endpointKey(address, port), address, port);
+		if (index < 0) {
+			return false;
+		}
+		AtomicReferenceArray<Entry> tab = table;
+		if (tab.get(index).value != value) {
+			return false;
+		}
+		tab.set(index, TOMBSTONE);
+		size--;
+		return true;
+	}
+
+	public synchronized void clear() {
+		table = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+		size = 0;
+		used = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return A snapshot of all values.
+	 */
+	public List<V> values() {
+		AtomicReferenceArray<Entry> tab = table;
+		List<V> values = new ArrayList<V>();
+		for (int i = 0; i < tab.length(); i++) {
+			Entry e = tab.get(i);
+			if (e != null && e != TOMBSTONE) {
+				values.add(value(e));
+			}
+		}
+		return values;
+	}
+
+	private V get(long key, InetAddress address, int port) {
+		AtomicReferenceArray<Entry> tab = table;
+		int mask = tab.length() - 1;
+		for (int i = spread(key) & mask, n = 0; n < tab.length(); i = (i + 1) & mask, n++) {
+			Entry e = tab.get(i);
+			if (e == null) {
+				return null;
+			}
+			if (e != TOMBSTONE && e.key == key && e.port == port && address.equals(e.address)) {
+				return value(e);
+			}
+		}
+		return null;
+	}
+
+	/* writers only */
+	private int find(long key, InetAddress address, int port) {
+		AtomicReferenceArray<Entry> tab = table;
+		int mask = tab.length() - 1;
+		for (int i = spread(key) & mask, n = 0; n < tab.length(); i = (i + 1) & mask, n++) {
+			Entry e = tab.get(i);
+			if (e == null) {
+				return -1;
+			}
+			if (e != TOMBSTONE && e.key == key && e.port == port && address.equals(e.address)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* writers only */
+	private V insert(InetAddress address, int port, V value, boolean onlyIfAbsent) {
+		if (address == null || value == null) {
+			throw new IllegalArgumentException("address and value must not be null");
+		}
+		long key = endpointKey(address, port);
+		int index = find(key, address, port);
+		if (index >= 0) {
+			AtomicReferenceArray<Entry> tab = table;
+			V old = value(tab.get(index));
+			if (!onlyIfAbsent) {
+				tab.set(index, new Entry(key, address, port, value));
+			}
+			return old;
+		}
+		/* keep the load (including tombstones) below 1/2 */
+		if ((used + 1) * 2 > table.length()) {
+			rebuild(size + 1);
+		}
+		AtomicReferenceArray<Entry> tab = table;
+		int mask = tab.length() - 1;
+		int i = spread(key) & mask;
+		Entry e = tab.get(i);
+		while (e != null && e != TOMBSTONE) {
+			i = (i + 1) & mask;
+			e = tab.get(i);
+		}
+		if (e == null) {
+			used++;
+		}
+		tab.set(i, new Entry(key, address, port, value));
+		size++;
+		return null;
+	}
+
+	private void rebuild(int minSize) {
+		int capacity = INITIAL_CAPACITY;
+		while (capacity < minSize * 4) {
+			capacity <<= 1;
+		}
+		AtomicReferenceArray<Entry> old = table;
+		AtomicReferenceArray<Entry> tab = new AtomicReferenceArray<Entry>(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < old.length(); j++) {
+			Entry e = old.get(j);
+			if (e != null && e != TOMBSTONE) {
+				int i = spread(e.key) & mask;
+				while (tab.get(i) != null) {
+					i = (i + 1) & mask;
+				}
+				tab.set(i, e);
+			}
+		}
+		used = size;
+		/* publish the new table */
+		table = tab;
+	}
+
+	private static int spread(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+
+	private static boolean sameAddress(Entry e, byte[] raw) {
+		if (e.raw == null) {
+			/* IPv4: the packed key already matched */
+			return raw.length == 4;
+		}
+		return Arrays.equals(e.raw, raw);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V value(Entry e) {
+		return (V) e.value;
+	}
+}
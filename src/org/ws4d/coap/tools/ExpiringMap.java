@@ -0,0 +1,204 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe map whose entries expire after a per-entry deadline. Expired
+ * entries are invisible to all methods. They are removed lazily when they are
+ * accessed, and in bulk by expire(), which is meant to be called periodically
+ * by a background task. No external locking is needed.
+ */
+public class ExpiringMap<K, V> {
+
+	private static final class Entry<V> {
+		final V value;
+		final long deadline;
+
+		Entry(V value, long deadline) {
+			this.value = value;
+			this.deadline = deadline;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<K, Entry<V>>();
+	private final long lifetime;
+
+	/**
+	 * @param lifetimeMs
+	 *            default lifetime of an entry
+	 */
+	public ExpiringMap(long lifetimeMs) {
+		if (lifetimeMs < 0) {
+			throw new IllegalArgumentException("lifetime must not be negative");
+		}
+		this.lifetime = lifetimeMs;
+	}
+
+	/**
+	 * @return The previous value of the key, null if there was none or it
+	 *         expired.
+	 */
+	public V put(K key, V value) {
+		return put(key, value, lifetime);
+	}
+
+	public V put(K key, V value, long lifetimeMs) {
+		if (value == null) {
+			throw new IllegalArgumentException("value must not be null");
+		}
+		long now = System.currentTimeMillis();
+		return live(map.put(key, new Entry<V>(value, now + lifetimeMs)), now);
+	}
+
+	/**
+	 * Stores the value unless the key has a live value.
+	 * @return The live value of the key, null if the value was stored.
+	 */
+	public V putIfAbsent(K key, V value, long lifetimeMs) {
+		if (value == null) {
+			throw new IllegalArgumentException("value must not be null");
+		}
+		long now = System.currentTimeMillis();
+		Entry<V> entry = new Entry<V>(value, now + lifetimeMs);
+		while (true) {
+			Entry<V> existing = map.get(key);
+			if (existing == null) {
+				if (map.putIfAbsent(key, entry) == null) {
+					return null;
+				}
+			} else if (existing.deadline > now) {
+				return existing.value;
+			} else if (map.replace(key, existing, entry)) {
+				return null;
+			}
+		}
+	}
+
+	public V get(K key) {
+		Entry<V> entry = map.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.deadline <= System.currentTimeMillis()) {
+			/* only removes the entry if it was not replaced in the meantime */
+			map.remove(key, entry);
+			return null;
+		}
+		return entry.value;
+	}
+
+	public boolean containsKey(K key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * @return The removed value, null if there was none or it expired.
+	 */
+	public V remove(K key) {
+		return live(map.remove(key), System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes the key only if it is mapped to the given value.
+	 * @return true if the value was removed
+	 */
+	public boolean remove(K key, V value) {
+		Entry<V> entry = map.get(key);
+		return entry != null && entry.value == value && map.remove(key, entry);
+	}
+
+	/**
+	 * @return Number of entries that did not expire. Iterates over all entries.
+	 */
+	public int size() {
+		long now = System.currentTimeMillis();
+		int size = 0;
+		for (Entry<V> entry : map.values()) {
+			if (entry.deadline > now) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return A snapshot of the keys that did not expire.
+	 */
+	public Set<K> keySet() {
+		long now = System.currentTimeMillis();
+		Set<K> keys = new HashSet<K>();
+		for (Map.Entry<K, Entry<V>> e : map.entrySet()) {
+			if (e.getValue().deadline > now) {
+				keys.add(e.getKey());
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return A snapshot of the values that did not expire.
+	 */
+	public List<V> values() {
+		long now = System.currentTimeMillis();
+		List<V> values = new ArrayList<V>();
+		for (Entry<V> entry : map.values()) {
+			if (entry.deadline > now) {
+				values.add(entry.value);
+			}
+		}
+		return values;
+	}
+
+	public void clear() {
+		map.clear();
+	}
+
+	/**
+	 * Removes all expired entries.
+	 * @param now current time in milliseconds
+	 * @return number of removed entries
+	 */
+	public int expire(long now) {
+		int removed = 0;
+		for (Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<K, Entry<V>> e = it.next();
+			/* an entry that was replaced concurrently is kept */
+			if (e.getValue().deadline <= now && map.remove(e.getKey(), e.getValue())) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private static <V> V live(Entry<V> entry, long now) {
+		if (entry == null || entry.deadline <= now) {
+			return null;
+		}
+		return entry.value;
+	}
+}
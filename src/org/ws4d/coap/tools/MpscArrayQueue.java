@@ -0,0 +1,113 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free multi producer / single consumer ring buffer. Any thread
+ * may call offer(), only one thread (the consumer) may call poll(), drain()
+ * and isEmpty(). Each slot carries a sequence number which tells producers
+ * and the consumer whether the slot is free or filled.
+ */
+public class MpscArrayQueue<E> {
+
+	private final Object[] buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final int capacity;
+
+	/** next position to be claimed by a producer */
+	private final AtomicLong tail = new AtomicLong(0);
+	/** next position to be read by the consumer, only accessed by the consumer */
+	private long head = 0;
+
+	/**
+	 * @param capacity
+	 *            the capacity is rounded up to the next power of two
+	 */
+	public MpscArrayQueue(int capacity) {
+		if (capacity < 2) {
+			throw new IllegalArgumentException("capacity must be at least 2");
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.buffer = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the queue is full, the element was not added.
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			long pos = tail.get();
+			int index = (int) (pos & mask);
+			long seq = sequences.get(index);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer[index] = element;
+					/* publish the element (volatile write, so that a following
+					 * check of a consumer sleep flag can not be reordered) */
+					sequences.set(index, pos + 1);
+					return true;
+				}
+			} else if (seq < pos) {
+				/* slot not yet consumed: queue is full */
+				return false;
+			}
+			/* another producer claimed this position, retry */
+		}
+	}
+
+	/**
+	 * Consumer only.
+	 * @return the next element or null if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		int index = (int) (head & mask);
+		if (sequences.get(index) != head + 1) {
+			return null;
+		}
+		E element = (E) buffer[index];
+		buffer[index] = null;
+		/* release the slot for the next round */
+		sequences.lazySet(index, head + capacity);
+		head++;
+		return element;
+	}
+
+	/**
+	 * Consumer only.
+	 * @return true if there is no published element
+	 */
+	public boolean isEmpty() {
+		return sequences.get((int) (head & mask)) != head + 1;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+}
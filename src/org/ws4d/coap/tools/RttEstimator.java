@@ -0,0 +1,130 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+/**
+ * Retransmission timeout of one remote endpoint, following CoCoA
+ * (draft-ietf-core-cocoa). A strong estimator is fed with round trip times
+ * of exchanges without retransmission, a weak estimator with the time since
+ * the first transmission of exchanges with at most two retransmissions. The
+ * overall RTO is a moving average of the RTOs of both estimators. An RTO that
+ * was not updated for a while ages towards the initial RTO.
+ *
+ * All methods are thread safe.
+ */
+public class RttEstimator {
+
+	/** RTTVAR multiplier of the strong and the weak estimator */
+	private static final int K_STRONG = 4;
+	private static final int K_WEAK = 1;
+	/** weak samples of exchanges with more retransmissions are ignored */
+	public static final int MAX_WEAK_RETRANSMISSIONS = 2;
+	/** no RTO is smaller */
+	public static final long MIN_RTO_MS = 100;
+	/** no RTO is larger */
+	public static final long MAX_RTO_MS = 60000;
+
+	private final long initialRto;
+
+	private final Estimator strong = new Estimator(K_STRONG);
+	private final Estimator weak = new Estimator(K_WEAK);
+	private double rto;
+	private long lastUpdate;
+
+	private static final class Estimator {
+		final int k;
+		double srtt = -1;
+		double rttvar;
+
+		Estimator(int k) {
+			this.k = k;
+		}
+
+		/** RFC 6298 smoothing, @return the new RTO of this estimator */
+		double update(long rtt) {
+			if (srtt < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2.0;
+			} else {
+				rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+				srtt = 0.875 * srtt + 0.125 * rtt;
+			}
+			return srtt + k * rttvar;
+		}
+	}
+
+	/**
+	 * @param initialRtoMs
+	 *            RTO before the first sample, usually ACK_TIMEOUT
+	 */
+	public RttEstimator(long initialRtoMs) {
+		this.initialRto = initialRtoMs;
+		this.rto = initialRtoMs;
+		this.lastUpdate = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sample of an exchange that was confirmed without retransmission.
+	 */
+	public synchronized void updateStrong(long rttMs, long now) {
+		double rtoStrong = strong.update(rttMs);
+		rto = clamp(0.5 * rtoStrong + 0.5 * rto);
+		lastUpdate = now;
+	}
+
+	/**
+	 * Sample of an exchange that was confirmed after retransmissions,
+	 * measured from the first transmission.
+	 */
+	public synchronized void updateWeak(long rttMs, long now) {
+		double rtoWeak = weak.update(rttMs);
+		rto = clamp(0.25 * rtoWeak + 0.75 * rto);
+		lastUpdate = now;
+	}
+
+	/**
+	 * @return The current RTO in milliseconds, aged if there was no recent sample.
+	 */
+	public synchronized long getRto(long now) {
+		/* aging: small RTOs double, large RTOs move towards the initial RTO */
+		if (rto < 1000 && now - lastUpdate > 16 * rto) {
+			rto = Math.min(2 * rto, initialRto);
+			lastUpdate = now;
+		} else if (rto > 3000 && now - lastUpdate > 4 * rto) {
+			rto = (initialRto + rto) / 2;
+			lastUpdate = now;
+		}
+		return (long) rto;
+	}
+
+	/**
+	 * Variable backoff factor: retransmit faster after a small RTO, back off
+	 * less after a large RTO.
+	 */
+	public static double backoffFactor(long rtoMs) {
+		if (rtoMs < 1000) {
+			return 3;
+		}
+		if (rtoMs > 3000) {
+			return 1.5;
+		}
+		return 2;
+	}
+
+	private static double clamp(double rto) {
+		return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+	}
+}
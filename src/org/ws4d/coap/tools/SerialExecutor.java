@@ -0,0 +1,88 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the submitted tasks one after another, in submission order, on an
+ * underlying executor. At most one task of a SerialExecutor runs at a time,
+ * different SerialExecutors sharing an executor run in parallel. After
+ * BATCH_SIZE tasks the executor thread is given back, so that a busy
+ * SerialExecutor can not starve others.
+ */
+public class SerialExecutor implements Executor {
+	private final static Logger logger = Logger.getLogger(SerialExecutor.class);
+
+	private static final int BATCH_SIZE = 64;
+
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** number of queued tasks, the submitter that raises it from 0 schedules the drain task */
+	private final AtomicInteger pending = new AtomicInteger(0);
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			for (int n = 0; n < BATCH_SIZE; n++) {
+				Runnable task = tasks.poll();
+				boolean completed = false;
+				int left;
+				try {
+					task.run();
+					completed = true;
+				} catch (RuntimeException e) {
+					logger.error("Dispatched task failed", e);
+					completed = true;
+				} finally {
+					left = pending.decrementAndGet();
+					if (!completed && left != 0) {
+						/* an Error leaves this drain task, the next tasks run in a new one */
+						executor.execute(this);
+					}
+				}
+				if (left == 0) {
+					return;
+				}
+			}
+			/* more tasks are pending, continue later */
+			executor.execute(this);
+		}
+	};
+
+	public SerialExecutor(Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor must not be null");
+		}
+		this.executor = executor;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if (pending.getAndIncrement() == 0) {
+			executor.execute(drain);
+		}
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+}
@@ -22,6 +22,11 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+/**
+ * @deprecated Not thread safe and most methods are not implemented, use
+ *             {@link ExpiringMap}.
+ */
+@Deprecated
 public class TimeoutHashMap<K, V> extends HashMap<Object, Object> {
 	
 
@@ -0,0 +1,222 @@
+/* Copyright 2015 University of Rostock
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *****************************************************************************/
+
+package org.ws4d.coap.tools;
+
+/**
+ * Hashed timing wheel with O(1) schedule and cancel. Timeouts are intrusive:
+ * users extend {@link Timeout}, so a timeout object can be rescheduled any
+ * number of times without allocating. Each slot of the wheel is a doubly
+ * linked list, timeouts that are more than one revolution away count down
+ * their remaining rounds.
+ *
+ * schedule() and cancel() may be called from any thread. advance() must be
+ * called periodically by a single thread, which also executes the expired
+ * timeouts (outside of the lock of the wheel).
+ */
+public class TimingWheel {
+
+	public static abstract class Timeout {
+		private TimingWheel wheel = null;
+		private int slot = -1;
+		private long rounds;
+		private long deadline;
+		private Timeout prev;
+		private Timeout next;
+		/** chains expired timeouts during advance() */
+		private Timeout nextExpired;
+
+		/**
+		 * Called by the thread that advances the wheel.
+		 * @param now current time in milliseconds
+		 */
+		protected abstract void expired(long now);
+
+		/**
+		 * @return true if the timeout is scheduled and did not expire yet
+		 */
+		public boolean isScheduled() {
+			TimingWheel w = wheel;
+			if (w == null) {
+				return false;
+			}
+			synchronized (w) {
+				return slot >= 0;
+			}
+		}
+
+		/**
+		 * @return The deadline of the last schedule in milliseconds.
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * @return false if the timeout was not scheduled (anymore)
+		 */
+		public boolean cancel() {
+			TimingWheel w = wheel;
+			if (w == null) {
+				return false;
+			}
+			return w.cancel(this);
+		}
+	}
+
+	private final Timeout[] slots;
+	private final int mask;
+	private final long tickMs;
+	private final long startTime;
+	/** the last tick that was processed */
+	private long tick = 0;
+	private int size = 0;
+
+	/**
+	 * @param tickMs
+	 *            resolution of the wheel in milliseconds
+	 * @param slotCount
+	 *            number of slots, rounded up to the next power of two
+	 */
+	public TimingWheel(long tickMs, int slotCount) {
+		if (tickMs < 1 || slotCount < 1) {
+			throw new IllegalArgumentException("invalid timing wheel parameters");
+		}
+		int count = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+		this.slots = new Timeout[count];
+		this.mask = count - 1;
+		this.tickMs = tickMs;
+		this.startTime = System.currentTimeMillis();
+	}
+
+	public void schedule(Timeout timeout, long delayMs) {
+		schedule(timeout, delayMs, System.currentTimeMillis());
+	}
+
+	/**
+	 * Schedules the timeout, an already scheduled timeout is moved.
+	 * @param timeout
+	 * @param delayMs
+	 * @param now current time in milliseconds
+	 */
+	public synchronized void schedule(Timeout timeout, long delayMs, long now) {
+		if (timeout.wheel != null && timeout.wheel != this) {
+			throw new IllegalStateException("Timeout belongs to another timing wheel");
+		}
+		if (timeout.slot >= 0) {
+			unlink(timeout);
+		}
+		long deadline = now + Math.max(delayMs, 0);
+		/* round up, a timeout never expires early */
+		long target = (deadline - startTime + tickMs - 1) / tickMs;
+		if (target <= tick) {
+			target = tick + 1;
+		}
+		timeout.wheel = this;
+		timeout.deadline = deadline;
+		timeout.rounds = (target - tick - 1) / slots.length;
+		timeout.slot = (int) (target & mask);
+
+		Timeout head = slots[timeout.slot];
+		timeout.prev = null;
+		timeout.next = head;
+		if (head != null) {
+			head.prev = timeout;
+		}
+		slots[timeout.slot] = timeout;
+		size++;
+	}
+
+	public synchronized boolean cancel(Timeout timeout) {
+		if (timeout.wheel != this || timeout.slot < 0) {
+			return false;
+		}
+		unlink(timeout);
+		return true;
+	}
+
+	/**
+	 * Processes all ticks up to now and executes the expired timeouts.
+	 * @param now current time in milliseconds
+	 * @return milliseconds until the next tick that has a timeout in its
+	 *         slot, -1 if no timeout is scheduled
+	 */
+	public long advance(long now) {
+		/* expired timeouts are executed in the order of their ticks */
+		Timeout expired = null;
+		Timeout last = null;
+		long next;
+		synchronized (this) {
+			long nowTick = (now - startTime) / tickMs;
+			while (tick < nowTick) {
+				tick++;
+				int slot = (int) (tick & mask);
+				Timeout t = slots[slot];
+				while (t != null) {
+					Timeout following = t.next;
+					if (t.rounds > 0) {
+						t.rounds--;
+					} else {
+						unlink(t);
+						if (last == null) {
+							expired = t;
+						} else {
+							last.nextExpired = t;
+						}
+						last = t;
+					}
+					t = following;
+				}
+			}
+			if (size == 0) {
+				next = -1;
+			} else {
+				/* empty slots need not be visited in time, advance() catches up */
+				int ticks = 1;
+				while (ticks < slots.length && slots[(int) ((tick + ticks) & mask)] == null) {
+					ticks++;
+				}
+				next = startTime + (tick + ticks) * tickMs - now;
+			}
+		}
+
+		while (expired != null) {
+			Timeout t = expired;
+			expired = t.nextExpired;
+			t.nextExpired = null;
+			t.expired(now);
+		}
+		return next;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+}